@@ -0,0 +1,70 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+
+/**
+ * {@link MidiInputDevice} without BLE connection, feeds the packets to the parser directly
+ *
+ * @author K.Shoji
+ */
+final class BenchmarkMidiInputDevice extends MidiInputDevice {
+    final BleMidiParser midiParser;
+
+    BenchmarkMidiInputDevice() {
+        midiParser = new BleMidiParser(this);
+    }
+
+    @Override
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        midiParser.setMidiInputEventListener(midiInputEventListener);
+    }
+
+    @NotNull
+    @Override
+    public BleMidiParser getParser() {
+        return midiParser;
+    }
+
+    @Override
+    public void start() {
+        midiParser.start();
+    }
+
+    @Override
+    public void stop() {
+        midiParser.stop();
+    }
+
+    @Override
+    public void terminate() {
+        midiParser.terminate();
+    }
+
+    @NotNull
+    @Override
+    public String getDeviceName() {
+        return "benchmark";
+    }
+
+    @NotNull
+    @Override
+    public String getManufacturer() {
+        return "";
+    }
+
+    @NotNull
+    @Override
+    public String getModel() {
+        return "";
+    }
+
+    @NotNull
+    @Override
+    public String getDeviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+}
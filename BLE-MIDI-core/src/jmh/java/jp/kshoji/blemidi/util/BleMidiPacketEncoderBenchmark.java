@@ -0,0 +1,33 @@
+package jp.kshoji.blemidi.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of {@link BleMidiPacketEncoder}
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+public class BleMidiPacketEncoderBenchmark {
+    private final BleMidiPacketEncoder encoder = new BleMidiPacketEncoder();
+    private final byte[] noteOn = {(byte) 0x90, 60, 100};
+    private int timestamp = 0;
+
+    /**
+     * Encodes one packet of 20 note messages
+     *
+     * @return the packet
+     */
+    @Benchmark
+    public byte[] encodeNotes() {
+        timestamp = (timestamp + 5) % BleMidiPacketEncoder.MAX_TIMESTAMP;
+        for (int i = 0; i < 20; i++) {
+            encoder.addMessage(timestamp, noteOn);
+        }
+        final byte[] packet = encoder.toByteArray();
+        encoder.reset();
+        return packet;
+    }
+}
@@ -0,0 +1,184 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputMessageListener;
+
+/**
+ * Throughput of {@link BleMidiParser}, reported in parsed bytes per second as the "bytes" counter
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+public class BleMidiParserBenchmark {
+    /**
+     * The packets to parse: note messages, control changes with running status, clock, or SysEx in full-MTU packets
+     */
+    @Param({"notes", "controls", "clock", "sysex"})
+    public String traffic;
+
+    /**
+     * How to fire the events: immediately on the parsing thread, or from the queue with their timestamp
+     */
+    @Param({"immediate", "queued"})
+    public String dispatch;
+
+    /**
+     * Counts the parsed bytes
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ParsedBytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private BenchmarkMidiInputDevice device;
+    private byte[][] packets;
+    private int packetBytes;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        device = new BenchmarkMidiInputDevice();
+        device.midiParser.setMidiInputMessageListener(new OnMidiInputMessageListener() {
+            @Override
+            public void onMidiInputMessage(@NotNull MidiInputDevice sender, int message, long timestamp, long senderTime, long arrivalTime) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void onMidiInputSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive, long timestamp, long senderTime, long arrivalTime) {
+                blackhole.consume(systemExclusive);
+            }
+        });
+        if ("immediate".equals(dispatch)) {
+            device.midiParser.setImmediateDispatchEventTypes(MidiEventType.ALL);
+        } else {
+            device.midiParser.setManualDispatch(true);
+        }
+        device.start();
+
+        packets = createPackets(traffic);
+        packetBytes = 0;
+        for (byte[] packet : packets) {
+            packetBytes += packet.length;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        device.terminate();
+    }
+
+    /**
+     * Parses the packets, and fires the events<br />
+     * With the queued dispatch, the packets are parsed as they had arrived one second ago, so all the events are due and fired from the queue.
+     *
+     * @param parsedBytes the counter
+     */
+    @Benchmark
+    public void parse(ParsedBytes parsedBytes) {
+        if ("immediate".equals(dispatch)) {
+            for (byte[] packet : packets) {
+                device.midiParser.parse(packet);
+            }
+        } else {
+            final long arrivalTime = System.nanoTime() - 1000000000L;
+            for (byte[] packet : packets) {
+                device.midiParser.parse(packet, 0, packet.length, arrivalTime);
+            }
+            device.midiParser.dispatchDueEvents();
+        }
+        parsedBytes.bytes += packetBytes;
+    }
+
+    /**
+     * Creates the BLE MIDI packets of the traffic
+     *
+     * @param traffic the traffic name
+     * @return the packets
+     */
+    @NotNull
+    private static byte[][] createPackets(@NotNull String traffic) {
+        final List<byte[]> packets = new ArrayList<>();
+        final BleMidiPacketEncoder encoder = new BleMidiPacketEncoder();
+        int timestamp = 0;
+
+        switch (traffic) {
+            case "notes":
+                for (int i = 0; i < 64; i++) {
+                    for (int note = 0; note < 20; note++) {
+                        encoder.addMessage(timestamp, new byte[] {(byte) 0x90, (byte) (36 + note), (byte) 100});
+                    }
+                    packets.add(encoder.toByteArray());
+                    encoder.reset();
+                    timestamp = (timestamp + 5) % BleMidiPacketEncoder.MAX_TIMESTAMP;
+                }
+                break;
+
+            case "controls":
+                for (int i = 0; i < 64; i++) {
+                    // control changes with running status, without timestamp
+                    final byte[] packet = new byte[3 + 2 * 60];
+                    packet[0] = (byte) BleMidiPacketEncoder.getHeaderByte(timestamp);
+                    packet[1] = (byte) BleMidiPacketEncoder.getTimestampByte(timestamp);
+                    packet[2] = (byte) 0xb0;
+                    for (int value = 0; value < 60; value++) {
+                        packet[3 + 2 * value] = 7;
+                        packet[4 + 2 * value] = (byte) value;
+                    }
+                    packets.add(packet);
+                    timestamp = (timestamp + 5) % BleMidiPacketEncoder.MAX_TIMESTAMP;
+                }
+                break;
+
+            case "clock":
+                for (int i = 0; i < 64; i++) {
+                    encoder.addMessage(timestamp, new byte[] {(byte) 0xf8});
+                    packets.add(encoder.toByteArray());
+                    encoder.reset();
+                    timestamp = (timestamp + 20) % BleMidiPacketEncoder.MAX_TIMESTAMP;
+                }
+                break;
+
+            case "sysex":
+                final byte[] systemExclusive = new byte[4096];
+                systemExclusive[0] = (byte) 0xf0;
+                for (int i = 1; i < systemExclusive.length - 1; i++) {
+                    systemExclusive[i] = (byte) (i & 0x7f);
+                }
+                systemExclusive[systemExclusive.length - 1] = (byte) 0xf7;
+
+                final byte[] message = BleMidiPacketEncoder.addSystemExclusiveTimestamps(systemExclusive, timestamp);
+                // full-MTU packets: 517 bytes MTU - 3
+                final int bufferSize = 514;
+                for (int i = 0; i < message.length; i += bufferSize - 1) {
+                    packets.add(BleMidiPacketEncoder.encodeSystemExclusivePacket(message, i, bufferSize, timestamp));
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown traffic: " + traffic);
+        }
+
+        return packets.toArray(new byte[packets.size()][]);
+    }
+}
@@ -1,9 +1,10 @@
 package jp.kshoji.blemidi.device;
 
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.util.BleMidiParser;
 
 /**
  * Represents BLE MIDI Input Device
@@ -19,6 +20,17 @@ public abstract class MidiInputDevice {
      */
     public abstract void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener);
 
+    /**
+     * Obtains the parser of the device<br />
+     * The input settings, like the jitter buffer and the other listeners, are configured on the parser.
+     *
+     * @return the parser, or null if the device doesn't parse BLE MIDI packets with {@link BleMidiParser}
+     */
+    @Nullable
+    public BleMidiParser getParser() {
+        return null;
+    }
+
     /**
      * Starts using the device
      */
@@ -39,7 +51,7 @@ public abstract class MidiInputDevice {
      *
      * @return device name
      */
-    @NonNull
+    @NotNull
     public abstract String getDeviceName();
 
     /**
@@ -47,7 +59,7 @@ public abstract class MidiInputDevice {
      *
      * @return manufacturer name
      */
-    @NonNull
+    @NotNull
     public abstract String getManufacturer();
 
     /**
@@ -55,7 +67,7 @@ public abstract class MidiInputDevice {
      *
      * @return model name
      */
-    @NonNull
+    @NotNull
     public abstract String getModel();
 
     /**
@@ -63,10 +75,10 @@ public abstract class MidiInputDevice {
      *
      * @return device address
      */
-    @NonNull
+    @NotNull
     public abstract String getDeviceAddress();
 
-    @NonNull
+    @NotNull
     @Override
     public final String toString() {
         return getDeviceName();
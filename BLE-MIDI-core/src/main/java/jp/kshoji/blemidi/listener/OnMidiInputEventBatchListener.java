@@ -0,0 +1,30 @@
+package jp.kshoji.blemidi.listener;
+
+import org.jetbrains.annotations.NotNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for MIDI events, receives all the events fired at once.<br />
+ * The events fired at the same dispatch, or the events in the same BLE packet for immediate dispatch, are delivered with one call.<br />
+ * The short messages are delivered as the MIDI bytes. SysEx, and RPN/NRPN are delivered only with {@link OnMidiInputEventListener}.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiInputEventBatchListener {
+
+    /**
+     * MIDI events<br />
+     * The arrays are reused after this call, don't keep the references.
+     *
+     * @param sender the device sent these messages
+     * @param status the status bytes, includes the channel
+     * @param data1 the first data bytes, 0 if the message has no data
+     * @param data2 the second data bytes, 0 if the message has less than 2 data
+     * @param timestamps the firing time of the events, in {@link System#nanoTime()} base
+     * @param senderTimes the sender's time of the events, in nanoseconds, or {@link OnMidiInputMessageListener#SENDER_TIME_UNKNOWN}, the original 13-bit timestamp is {@link jp.kshoji.blemidi.util.BleMidiPacketEncoder#getTimestamp(long)} of the time
+     * @param arrivalTimes the time the BLE packets have been received, in {@link System#nanoTime()} base
+     * @param count the count of the events, the arrays may be longer than this
+     */
+    void onMidiInputEventBatch(@NotNull MidiInputDevice sender, @NotNull int[] status, @NotNull int[] data1, @NotNull int[] data2, @NotNull long[] timestamps, @NotNull long[] senderTimes, @NotNull long[] arrivalTimes, int count);
+}
@@ -1,6 +1,6 @@
 package jp.kshoji.blemidi.listener;
 
-import android.support.annotation.NonNull;
+import org.jetbrains.annotations.NotNull;
 
 import jp.kshoji.blemidi.device.MidiInputDevice;
 
@@ -17,7 +17,7 @@ public interface OnMidiInputEventListener {
      * @param sender the device sent this message
 	 * @param systemExclusive received message
 	 */
-	void onMidiSystemExclusive(@NonNull MidiInputDevice sender, @NonNull byte[] systemExclusive);
+	void onMidiSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive);
 	
 	/**
 	 * Note-off
@@ -27,7 +27,7 @@ public interface OnMidiInputEventListener {
 	 * @param note 0-127
 	 * @param velocity 0-127
 	 */
-	void onMidiNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity);
+	void onMidiNoteOff(@NotNull MidiInputDevice sender, int channel, int note, int velocity);
 	
 	/**
 	 * Note-on
@@ -37,7 +37,7 @@ public interface OnMidiInputEventListener {
 	 * @param note 0-127
 	 * @param velocity 0-127
 	 */
-	void onMidiNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity);
+	void onMidiNoteOn(@NotNull MidiInputDevice sender, int channel, int note, int velocity);
 	
 	/**
 	 * Poly-KeyPress
@@ -47,7 +47,7 @@ public interface OnMidiInputEventListener {
 	 * @param note 0-127
 	 * @param pressure 0-127
 	 */
-	void onMidiPolyphonicAftertouch(@NonNull MidiInputDevice sender, int channel, int note, int pressure);
+	void onMidiPolyphonicAftertouch(@NotNull MidiInputDevice sender, int channel, int note, int pressure);
 	
 	/**
 	 * Control Change
@@ -57,7 +57,7 @@ public interface OnMidiInputEventListener {
 	 * @param function 0-127
 	 * @param value 0-127
 	 */
-	void onMidiControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value);
+	void onMidiControlChange(@NotNull MidiInputDevice sender, int channel, int function, int value);
 	
 	/**
 	 * Program Change
@@ -66,7 +66,7 @@ public interface OnMidiInputEventListener {
 	 * @param channel 0-15
 	 * @param program 0-127
 	 */
-	void onMidiProgramChange(@NonNull MidiInputDevice sender, int channel, int program);
+	void onMidiProgramChange(@NotNull MidiInputDevice sender, int channel, int program);
 	
 	/**
 	 * Channel Pressure
@@ -75,7 +75,7 @@ public interface OnMidiInputEventListener {
 	 * @param channel 0-15
 	 * @param pressure 0-127
 	 */
-	void onMidiChannelAftertouch(@NonNull MidiInputDevice sender, int channel, int pressure);
+	void onMidiChannelAftertouch(@NotNull MidiInputDevice sender, int channel, int pressure);
 	
 	/**
 	 * PitchBend Change
@@ -84,7 +84,7 @@ public interface OnMidiInputEventListener {
 	 * @param channel 0-15
 	 * @param amount 0(low)-8192(center)-16383(high)
 	 */
-	void onMidiPitchWheel(@NonNull MidiInputDevice sender, int channel, int amount);
+	void onMidiPitchWheel(@NotNull MidiInputDevice sender, int channel, int amount);
 
     /**
      * MIDI Time Code(MTC) Quarter Frame
@@ -92,7 +92,7 @@ public interface OnMidiInputEventListener {
      * @param sender the device sent this message
      * @param timing 0-16383
      */
-    void onMidiTimeCodeQuarterFrame(@NonNull MidiInputDevice sender, int timing);
+    void onMidiTimeCodeQuarterFrame(@NotNull MidiInputDevice sender, int timing);
 
     /**
      * Song Select
@@ -100,7 +100,7 @@ public interface OnMidiInputEventListener {
      * @param sender the device sent this message
      * @param song 0-127
      */
-    void onMidiSongSelect(@NonNull MidiInputDevice sender, int song);
+    void onMidiSongSelect(@NotNull MidiInputDevice sender, int song);
 
     /**
      * Song Position Pointer
@@ -108,56 +108,56 @@ public interface OnMidiInputEventListener {
      * @param sender the device sent this message
      * @param position 0-16383
      */
-    void onMidiSongPositionPointer(@NonNull MidiInputDevice sender, int position);
+    void onMidiSongPositionPointer(@NotNull MidiInputDevice sender, int position);
 
     /**
      * Tune Request
      *
      * @param sender the device sent this message
      */
-    void onMidiTuneRequest(@NonNull MidiInputDevice sender);
+    void onMidiTuneRequest(@NotNull MidiInputDevice sender);
 
     /**
      * Timing Clock
      *
      * @param sender the device sent this message
      */
-    void onMidiTimingClock(@NonNull MidiInputDevice sender);
+    void onMidiTimingClock(@NotNull MidiInputDevice sender);
 
     /**
      * Start Playing
      *
      * @param sender the device sent this message
      */
-    void onMidiStart(@NonNull MidiInputDevice sender);
+    void onMidiStart(@NotNull MidiInputDevice sender);
 
     /**
      * Continue Playing
      *
      * @param sender the device sent this message
      */
-    void onMidiContinue(@NonNull MidiInputDevice sender);
+    void onMidiContinue(@NotNull MidiInputDevice sender);
 
     /**
      * Stop Playing
      *
      * @param sender the device sent this message
      */
-    void onMidiStop(@NonNull MidiInputDevice sender);
+    void onMidiStop(@NotNull MidiInputDevice sender);
 
     /**
      * Active Sensing
      *
      * @param sender the device sent this message
      */
-    void onMidiActiveSensing(@NonNull MidiInputDevice sender);
+    void onMidiActiveSensing(@NotNull MidiInputDevice sender);
 
     /**
      * Reset Device
      *
      * @param sender the device sent this message
      */
-    void onMidiReset(@NonNull MidiInputDevice sender);
+    void onMidiReset(@NotNull MidiInputDevice sender);
 
     /**
      * RPN message<br />
@@ -168,7 +168,7 @@ public interface OnMidiInputEventListener {
      * @param function 14bits
      * @param value 7 bits or 14 bits
      */
-    void onRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value);
+    void onRPNMessage(@NotNull MidiInputDevice sender, int channel, int function, int value);
 
     /**
      * NRPN message<br />
@@ -179,5 +179,5 @@ public interface OnMidiInputEventListener {
      * @param function 14bits
      * @param value 7 bits or 14 bits
      */
-    void onNRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value);
+    void onNRPNMessage(@NotNull MidiInputDevice sender, int channel, int function, int value);
 }
@@ -0,0 +1,45 @@
+package jp.kshoji.blemidi.listener;
+
+import org.jetbrains.annotations.NotNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for MIDI messages, receives each message as it is on the wire.<br />
+ * The short messages are packed into one int, see {@link jp.kshoji.blemidi.util.PackedMidiMessage}.<br />
+ * RPN/NRPN are delivered as their control change messages, the decoded values are delivered only with {@link OnMidiInputEventListener}.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiInputMessageListener {
+
+    /**
+     * The sender time is unknown, because the device doesn't send the timestamps
+     */
+    long SENDER_TIME_UNKNOWN = Long.MIN_VALUE;
+
+    /**
+     * MIDI short message<br />
+     * The original 13-bit timestamp in the BLE packet is {@link jp.kshoji.blemidi.util.BleMidiPacketEncoder#getTimestamp(long) BleMidiPacketEncoder.getTimestamp(senderTime)}, or 0 if the sender time is unknown.
+     * The sender time may be negative, don't calculate the timestamp with <code>%</code>.
+     *
+     * @param sender the device sent this message
+     * @param message the packed message, see {@link jp.kshoji.blemidi.util.PackedMidiMessage}
+     * @param timestamp the firing time of the message, in {@link System#nanoTime()} base
+     * @param senderTime the sender's time reconstructed from the wrapped timestamps, in nanoseconds, or {@link #SENDER_TIME_UNKNOWN}
+     * @param arrivalTime the time the BLE packet has been received, in {@link System#nanoTime()} base
+     */
+    void onMidiInputMessage(@NotNull MidiInputDevice sender, int message, long timestamp, long senderTime, long arrivalTime);
+
+    /**
+     * SysEx message<br />
+     * The original 13-bit timestamp of the last byte is {@link jp.kshoji.blemidi.util.BleMidiPacketEncoder#getTimestamp(long) BleMidiPacketEncoder.getTimestamp(senderTime)}, or 0 if the sender time is unknown.
+     *
+     * @param sender the device sent this message
+     * @param systemExclusive received message, starts with 0xF0 and ends with 0xF7
+     * @param timestamp the firing time of the message, in {@link System#nanoTime()} base
+     * @param senderTime the sender's time of the last byte, in nanoseconds, or {@link #SENDER_TIME_UNKNOWN}
+     * @param arrivalTime the time the BLE packet with the last byte has been received, in {@link System#nanoTime()} base
+     */
+    void onMidiInputSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive, long timestamp, long senderTime, long arrivalTime);
+}
@@ -0,0 +1,48 @@
+package jp.kshoji.blemidi.listener;
+
+import org.jetbrains.annotations.NotNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for SysEx messages, receives the message incrementally.<br />
+ * Large SysEx messages, like sample dumps or firmware updates, can be processed without holding the whole message in memory.<br />
+ * The methods are called on the thread receiving the BLE packets, as soon as the data arrives; not at the timing of the events.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiSystemExclusiveChunkListener {
+
+    /**
+     * SysEx message has been started
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveStart(@NotNull MidiInputDevice sender);
+
+    /**
+     * The part of SysEx message<br />
+     * The first chunk starts with 0xF0, and the last chunk ends with 0xF7.<br />
+     * The array is reused after this call, don't keep the reference.
+     *
+     * @param sender the device sent this message
+     * @param data the array contains the part of message
+     * @param offset the offset of the part in the array
+     * @param length the length of the part
+     */
+    void onMidiSystemExclusiveChunk(@NotNull MidiInputDevice sender, @NotNull byte[] data, int offset, int length);
+
+    /**
+     * SysEx message has been finished
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveEnd(@NotNull MidiInputDevice sender);
+
+    /**
+     * SysEx message has been aborted, because the message exceeded the maximum length
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveAbort(@NotNull MidiInputDevice sender);
+}
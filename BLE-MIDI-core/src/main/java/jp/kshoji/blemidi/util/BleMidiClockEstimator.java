@@ -0,0 +1,144 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Estimates the clock offset, and the clock drift between the sender's timestamps and the local clock.<br />
+ * Fits a linear regression over the latest (sender time, arrival time) pairs, and maps the sender's time to the local time smoothly.<br />
+ * The pairs are the fastest arrivals in each period, so the regression follows the lower envelope of the transit time, not the jitter.<br />
+ * One BleMidiClockEstimator instance belongs to one BleMidiParser instance.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiClockEstimator {
+    // the count of the latest periods to fit
+    private static final int WINDOW_SIZE = 64;
+    // the sender's time span of one period
+    private static final long PERIOD_NANOS = 250 * 1000000L;
+    // the sender's time span needed to estimate the drift
+    private static final long MIN_DRIFT_SPAN_NANOS = 4000 * 1000000L;
+    // the maximum drift accepted, 1000ppm
+    private static final double MAX_DRIFT = 0.001;
+
+    private final long[] senderTimeSamples = new long[WINDOW_SIZE];
+    private final long[] arrivalTimeSamples = new long[WINDOW_SIZE];
+    private int sampleCount = 0;
+    private int sampleIndex = 0;
+
+    // the fastest arrival in the current period
+    private boolean hasPeriodSample = false;
+    private long periodEndSenderTime;
+    private long periodSenderTime;
+    private long periodArrivalTime;
+
+    // the mapping: localTime = referenceLocalTime + (senderTime - referenceSenderTime) * rate
+    private long referenceSenderTime = 0;
+    private long referenceLocalTime = 0;
+    private double rate = 1.0;
+
+    private volatile double driftPpm = 0.0;
+
+    /**
+     * Obtains the estimated clock drift of the sender, compared with the local clock
+     *
+     * @return the drift in ppm, positive if the local clock runs faster than the sender's clock
+     */
+    public double getDriftPpm() {
+        return driftPpm;
+    }
+
+    /**
+     * Clears the samples, when the sender's time base has been changed.<br />
+     * The estimated drift is kept.
+     */
+    void reset() {
+        sampleCount = 0;
+        sampleIndex = 0;
+        hasPeriodSample = false;
+    }
+
+    /**
+     * Adds the arrival sample
+     *
+     * @param senderTimeNanos the event's time on the sender
+     * @param arrivalTimeNanos the event's arrival time, in {@link System#nanoTime()} base
+     */
+    void addSample(long senderTimeNanos, long arrivalTimeNanos) {
+        if (!hasPeriodSample) {
+            if (sampleCount == 0) {
+                // the first sample: maps with the estimated drift
+                referenceSenderTime = senderTimeNanos;
+                referenceLocalTime = arrivalTimeNanos;
+            }
+        } else if (senderTimeNanos >= periodEndSenderTime) {
+            // the period has been finished: fit with the fastest arrival in the period
+            senderTimeSamples[sampleIndex] = periodSenderTime;
+            arrivalTimeSamples[sampleIndex] = periodArrivalTime;
+            sampleIndex = (sampleIndex + 1) % WINDOW_SIZE;
+            if (sampleCount < WINDOW_SIZE) {
+                sampleCount++;
+            }
+            hasPeriodSample = false;
+
+            updateMapping();
+        }
+
+        if (!hasPeriodSample) {
+            hasPeriodSample = true;
+            periodEndSenderTime = senderTimeNanos + PERIOD_NANOS;
+            periodSenderTime = senderTimeNanos;
+            periodArrivalTime = arrivalTimeNanos;
+        } else if (arrivalTimeNanos - senderTimeNanos < periodArrivalTime - periodSenderTime) {
+            periodSenderTime = senderTimeNanos;
+            periodArrivalTime = arrivalTimeNanos;
+        }
+    }
+
+    /**
+     * Maps the sender's time to the local time
+     *
+     * @param senderTimeNanos the time on the sender
+     * @return the local time, in {@link System#nanoTime()} base
+     */
+    long toLocalTime(long senderTimeNanos) {
+        return referenceLocalTime + (long) ((senderTimeNanos - referenceSenderTime) * rate);
+    }
+
+    /**
+     * Updates the mapping with the samples in the window
+     */
+    private void updateMapping() {
+        // use the values relative to the current reference, for the precision
+        double meanX = 0;
+        double meanY = 0;
+        long minX = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        for (int i = 0; i < sampleCount; i++) {
+            final long x = senderTimeSamples[i] - referenceSenderTime;
+            meanX += x;
+            meanY += arrivalTimeSamples[i] - referenceLocalTime;
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+        }
+        meanX /= sampleCount;
+        meanY /= sampleCount;
+
+        double slope = rate;
+        if (maxX - minX >= MIN_DRIFT_SPAN_NANOS) {
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                final double dx = senderTimeSamples[i] - referenceSenderTime - meanX;
+                final double dy = arrivalTimeSamples[i] - referenceLocalTime - meanY;
+                covariance += dx * dy;
+                variance += dx * dx;
+            }
+            slope = covariance / variance;
+            slope = Math.max(1.0 - MAX_DRIFT, Math.min(1.0 + MAX_DRIFT, slope));
+        }
+
+        // the fitted line passes the mean point, use it as the new reference
+        referenceSenderTime += (long) meanX;
+        referenceLocalTime += (long) meanY;
+        rate = slope;
+        driftPpm = (slope - 1.0) * 1000000.0;
+    }
+}
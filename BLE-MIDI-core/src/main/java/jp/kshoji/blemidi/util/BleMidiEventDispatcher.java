@@ -0,0 +1,181 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fires the queued MIDI events of {@link BleMidiParser}s at their timing.<br />
+ * One dispatcher can be shared with multiple parsers, so the thread count stays constant regardless of the connected devices.<br />
+ * The events of each parser are fired in order, and the parsers are served in round-robin.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiEventDispatcher {
+    // the maximum events fired from one parser, before serving the other parsers
+    private static final int MAX_EVENTS_PER_ROUND = 32;
+
+    private static BleMidiEventDispatcher sharedInstance = null;
+
+    private final Object parsersLock = new Object();
+    private volatile BleMidiParser[] parsers = new BleMidiParser[0];
+
+    private final Thread dispatchThread;
+    private volatile boolean isTerminated = false;
+
+    // the timing the dispatcher sleeps until, Long.MAX_VALUE while dispatching
+    private volatile long parkDeadline = Long.MAX_VALUE;
+
+    /**
+     * Obtains the dispatcher shared with all the parsers
+     *
+     * @return the shared dispatcher
+     */
+    @NotNull
+    public static synchronized BleMidiEventDispatcher getSharedInstance() {
+        if (sharedInstance == null) {
+            sharedInstance = new BleMidiEventDispatcher("SharedEventDequeueThread");
+            sharedInstance.dispatchThread.setDaemon(true);
+            sharedInstance.dispatchThread.start();
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threadName the name of dispatching thread
+     */
+    private BleMidiEventDispatcher(@NotNull String threadName) {
+        dispatchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, threadName);
+    }
+
+    /**
+     * Creates a dispatcher for one parser
+     *
+     * @return the dispatcher, the thread is already started
+     */
+    @NotNull
+    static BleMidiEventDispatcher newInstance() {
+        BleMidiEventDispatcher dispatcher = new BleMidiEventDispatcher("EventDequeueThread");
+        dispatcher.dispatchThread.start();
+        return dispatcher;
+    }
+
+    /**
+     * Registers the parser to dispatch its events
+     *
+     * @param parser the parser
+     */
+    void register(@NotNull BleMidiParser parser) {
+        synchronized (parsersLock) {
+            final BleMidiParser[] newParsers = new BleMidiParser[parsers.length + 1];
+            System.arraycopy(parsers, 0, newParsers, 0, parsers.length);
+            newParsers[parsers.length] = parser;
+            parsers = newParsers;
+        }
+        wakeUp();
+    }
+
+    /**
+     * Unregisters the parser
+     *
+     * @param parser the parser
+     */
+    void unregister(@NotNull BleMidiParser parser) {
+        synchronized (parsersLock) {
+            int index = -1;
+            for (int i = 0; i < parsers.length; i++) {
+                if (parsers[i] == parser) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+
+            final BleMidiParser[] newParsers = new BleMidiParser[parsers.length - 1];
+            System.arraycopy(parsers, 0, newParsers, 0, index);
+            System.arraycopy(parsers, index + 1, newParsers, index, parsers.length - index - 1);
+            parsers = newParsers;
+        }
+    }
+
+    /**
+     * Wakes up the dispatching thread
+     */
+    void wakeUp() {
+        LockSupport.unpark(dispatchThread);
+    }
+
+    /**
+     * Wakes up the dispatching thread, if the event fires before the current sleeping deadline
+     *
+     * @param eventTiming the timing of new event
+     */
+    void wakeUp(long eventTiming) {
+        if (eventTiming < parkDeadline) {
+            LockSupport.unpark(dispatchThread);
+        }
+    }
+
+    /**
+     * Terminates the dispatching thread
+     */
+    void terminate() {
+        if (this == sharedInstance) {
+            // the shared instance lives with the process
+            return;
+        }
+        isTerminated = true;
+        LockSupport.unpark(dispatchThread);
+    }
+
+    /**
+     * Dispatching loop
+     */
+    private void dispatch() {
+        int roundOffset = 0;
+        while (!isTerminated) {
+            parkDeadline = Long.MAX_VALUE;
+
+            final BleMidiParser[] currentParsers = parsers;
+            final int parserCount = currentParsers.length;
+            final long currentTime = System.nanoTime();
+            boolean hasFired = false;
+            long nextEventTiming = Long.MAX_VALUE;
+
+            for (int i = 0; i < parserCount; i++) {
+                final BleMidiParser parser = currentParsers[(i + roundOffset) % parserCount];
+                if (parser.dispatchEvents(currentTime, MAX_EVENTS_PER_ROUND) > 0) {
+                    hasFired = true;
+                }
+                nextEventTiming = Math.min(nextEventTiming, parser.getNextEventTiming());
+            }
+
+            if (parserCount > 0) {
+                // the next round starts with the next parser
+                roundOffset = (roundOffset + 1) % parserCount;
+            }
+
+            if (hasFired) {
+                // some events may become due while firing
+                continue;
+            }
+
+            // sleep until the next event's timing, or a new event comes
+            parkDeadline = nextEventTiming;
+            if (nextEventTiming == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, nextEventTiming - currentTime);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package jp.kshoji.blemidi.util;
+
+import java.util.Arrays;
+
+/**
+ * Adaptive jitter buffer for the timestamped BLE MIDI events.<br />
+ * Measures the arrival jitter of one device, and sizes the playout delay to a percentile of the jitter plus a margin.<br />
+ * One BleMidiJitterBuffer instance belongs to one BleMidiParser instance.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiJitterBuffer {
+    // the count of the latest samples to measure the jitter
+    private static final int WINDOW_SIZE = 256;
+    // the count of samples between the playout delay updates
+    private static final int UPDATE_INTERVAL = 16;
+
+    private static final long DEFAULT_DELAY_NANOS = 50 * 1000000L;
+    private static final double DEFAULT_PERCENTILE = 99.0;
+    private static final long DEFAULT_MARGIN_NANOS = 2 * 1000000L;
+    private static final long DEFAULT_MAX_DELAY_NANOS = 100 * 1000000L;
+
+    private final long[] transitSamples = new long[WINDOW_SIZE];
+    private final long[] sortedJitterSamples = new long[WINDOW_SIZE];
+    private int sampleCount = 0;
+    private int sampleIndex = 0;
+    private int samplesSinceUpdate = 0;
+    private long minTransitNanos = 0;
+
+    private volatile double percentile = DEFAULT_PERCENTILE;
+    private volatile long marginNanos = DEFAULT_MARGIN_NANOS;
+    private volatile long maxDelayNanos = DEFAULT_MAX_DELAY_NANOS;
+    private volatile long jitterNanos = 0;
+    private volatile long delayNanos = DEFAULT_DELAY_NANOS;
+
+    /**
+     * Sets the percentile of the arrival jitter, to cover with the playout delay
+     *
+     * @param percentile 0.0 to 100.0, default: 99.0
+     */
+    public void setPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be 0.0 to 100.0");
+        }
+        this.percentile = percentile;
+    }
+
+    /**
+     * Obtains the percentile of the arrival jitter, to cover with the playout delay
+     *
+     * @return the percentile
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Sets the margin added to the measured jitter
+     *
+     * @param marginNanos the margin in nanoseconds, default: 2 milliseconds
+     */
+    public void setMarginNanos(long marginNanos) {
+        this.marginNanos = Math.max(0, marginNanos);
+    }
+
+    /**
+     * Obtains the margin added to the measured jitter
+     *
+     * @return the margin in nanoseconds
+     */
+    public long getMarginNanos() {
+        return marginNanos;
+    }
+
+    /**
+     * Sets the maximum playout delay
+     *
+     * @param maxDelayNanos the cap of the delay in nanoseconds, default: 100 milliseconds
+     */
+    public void setMaxDelayNanos(long maxDelayNanos) {
+        this.maxDelayNanos = Math.max(0, maxDelayNanos);
+        delayNanos = Math.min(delayNanos, this.maxDelayNanos);
+    }
+
+    /**
+     * Obtains the maximum playout delay
+     *
+     * @return the cap of the delay in nanoseconds
+     */
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    /**
+     * Obtains the measured arrival jitter, at the configured percentile
+     *
+     * @return the jitter in nanoseconds
+     */
+    public long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    /**
+     * Obtains the current playout delay, the buffer depth
+     *
+     * @return the delay in nanoseconds
+     */
+    public long getDelayNanos() {
+        return delayNanos;
+    }
+
+    /**
+     * Clears the samples, when the sender's time base has been changed.<br />
+     * The current playout delay is kept.
+     */
+    void reset() {
+        sampleCount = 0;
+        sampleIndex = 0;
+        samplesSinceUpdate = 0;
+    }
+
+    /**
+     * Adds the arrival sample, and calculates the playout time of the event
+     *
+     * @param mappedSenderTimeNanos the event's time on the sender, mapped to {@link System#nanoTime()} base
+     * @param arrivalTimeNanos the event's arrival time, in {@link System#nanoTime()} base
+     * @return the playout time, in {@link System#nanoTime()} base
+     */
+    long calculatePlayoutTime(long mappedSenderTimeNanos, long arrivalTimeNanos) {
+        final long transitNanos = arrivalTimeNanos - mappedSenderTimeNanos;
+
+        if (sampleCount == 0 || transitNanos < minTransitNanos) {
+            minTransitNanos = transitNanos;
+        }
+        transitSamples[sampleIndex] = transitNanos;
+        sampleIndex = (sampleIndex + 1) % WINDOW_SIZE;
+        if (sampleCount < WINDOW_SIZE) {
+            sampleCount++;
+        }
+
+        samplesSinceUpdate++;
+        if (samplesSinceUpdate >= UPDATE_INTERVAL) {
+            samplesSinceUpdate = 0;
+            updateDelay();
+        }
+
+        return mappedSenderTimeNanos + minTransitNanos + delayNanos;
+    }
+
+    /**
+     * Updates the playout delay with the samples in the window
+     */
+    private void updateDelay() {
+        // the fastest transit in the window is the base of jitter
+        long minTransit = transitSamples[0];
+        for (int i = 1; i < sampleCount; i++) {
+            if (transitSamples[i] < minTransit) {
+                minTransit = transitSamples[i];
+            }
+        }
+        minTransitNanos = minTransit;
+
+        for (int i = 0; i < sampleCount; i++) {
+            sortedJitterSamples[i] = transitSamples[i] - minTransit;
+        }
+        Arrays.sort(sortedJitterSamples, 0, sampleCount);
+
+        int index = (int) Math.ceil(percentile / 100.0 * sampleCount) - 1;
+        if (index < 0) {
+            index = 0;
+        }
+        jitterNanos = sortedJitterSamples[index];
+        delayNanos = Math.min(maxDelayNanos, jitterNanos + marginNanos);
+    }
+}
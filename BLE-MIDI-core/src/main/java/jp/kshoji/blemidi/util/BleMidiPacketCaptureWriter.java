@@ -0,0 +1,277 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the received BLE MIDI packets, with their arrival time, to the stream<br />
+ * The captured packets can be fed to {@link BleMidiParser} again with {@link BleMidiPacketReplayer}.<br />
+ * <br />
+ * The format is the header: "BMCP" and the version byte, and the records for each packet:<br />
+ * the arrival time from the previous packet in nanoseconds (unsigned LEB128), the length of the packet (unsigned LEB128), and the packet bytes.<br />
+ * <br />
+ * The records are copied to the capture buffer on the receiving thread, and written to the stream on the writer's own thread.
+ * If the stream is slower than the incoming packets and the buffer becomes full, the capture fails, see {@link #checkError()}.<br />
+ * Close the writer to stop its thread.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiPacketCaptureWriter implements Closeable {
+    static final byte[] MAGIC = {'B', 'M', 'C', 'P'};
+    static final int VERSION = 1;
+    // the longer packet can't be a BLE packet, the replayer rejects it
+    static final int MAX_PACKET_LENGTH = 65535;
+    // the records not written to the stream yet, fits two longest packets
+    private static final int CAPTURE_BUFFER_SIZE = 1 << 17;
+
+    private final OutputStream outputStream;
+    private final Thread writerThread;
+    private long lastArrivalTime;
+    private boolean hasLastArrivalTime = false;
+    private boolean isError = false;
+    private boolean isClosed = false;
+
+    // the ring buffer of the encoded records, guarded by this
+    private final byte[] captureBuffer = new byte[CAPTURE_BUFFER_SIZE];
+    private int captureBufferHead = 0;
+    private int captureBufferLength = 0;
+
+    /**
+     * Constructor
+     *
+     * @param outputStream the stream to write, like a file
+     * @throws IOException if the header couldn't be written
+     */
+    public BleMidiPacketCaptureWriter(@NotNull OutputStream outputStream) throws IOException {
+        this.outputStream = new BufferedOutputStream(outputStream);
+        this.outputStream.write(MAGIC);
+        this.outputStream.write(VERSION);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeCapturedRecords();
+            }
+        }, "PacketCaptureThread");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Writes the packet, contained in the part of the array<br />
+     * The packet is copied to the capture buffer, without waiting for the stream.
+     *
+     * @param data the array contains the packet
+     * @param offset the offset of the packet in the array
+     * @param length the length of the packet
+     * @param arrivalTime the time the packet has been received, in {@link System#nanoTime()} base
+     */
+    synchronized void write(@NotNull byte[] data, int offset, int length, long arrivalTime) {
+        if (isError) {
+            return;
+        }
+        if (length > MAX_PACKET_LENGTH || !putRecordHeader(length, arrivalTime)) {
+            isError = true;
+            return;
+        }
+
+        for (int i = offset; i < offset + length; i++) {
+            putByte(data[i]);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Writes the packet, contained from the position to the limit of the buffer<br />
+     * The packet is copied to the capture buffer, without waiting for the stream. The position of the buffer is not changed.
+     *
+     * @param data the buffer contains the packet
+     * @param arrivalTime the time the packet has been received, in {@link System#nanoTime()} base
+     */
+    synchronized void write(@NotNull ByteBuffer data, long arrivalTime) {
+        if (isError) {
+            return;
+        }
+        if (data.remaining() > MAX_PACKET_LENGTH || !putRecordHeader(data.remaining(), arrivalTime)) {
+            isError = true;
+            return;
+        }
+
+        for (int i = data.position(); i < data.limit(); i++) {
+            putByte(data.get(i));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Puts the arrival time, and the length of the packet to the capture buffer, if the whole record fits in the buffer
+     *
+     * @param length the length of the packet
+     * @param arrivalTime the time the packet has been received, in {@link System#nanoTime()} base
+     * @return false if the buffer is full, or the writer has been closed
+     */
+    private boolean putRecordHeader(int length, long arrivalTime) {
+        long interval = hasLastArrivalTime ? arrivalTime - lastArrivalTime : 0;
+        if (interval < 0) {
+            interval = 0;
+        }
+        if (isClosed || captureBuffer.length - captureBufferLength < getVariableLengthSize(interval) + getVariableLengthSize(length) + length) {
+            return false;
+        }
+        lastArrivalTime = arrivalTime;
+        hasLastArrivalTime = true;
+
+        putVariableLength(interval);
+        putVariableLength(length);
+        return true;
+    }
+
+    /**
+     * Obtains the byte count of the unsigned LEB128 value
+     *
+     * @param value the value, must be 0 or more
+     * @return the byte count
+     */
+    private static int getVariableLengthSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Puts the unsigned LEB128 value to the capture buffer
+     *
+     * @param value the value, must be 0 or more
+     */
+    private void putVariableLength(long value) {
+        while ((value & ~0x7fL) != 0) {
+            putByte((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        putByte((byte) value);
+    }
+
+    /**
+     * Puts the byte to the capture buffer, the space must be checked before
+     *
+     * @param data the byte
+     */
+    private void putByte(byte data) {
+        captureBuffer[(captureBufferHead + captureBufferLength) % captureBuffer.length] = data;
+        captureBufferLength++;
+    }
+
+    /**
+     * Writing loop, moves the records from the capture buffer to the stream
+     */
+    private void writeCapturedRecords() {
+        while (true) {
+            final int offset;
+            final int length;
+            synchronized (this) {
+                while (captureBufferLength == 0 && !isClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (captureBufferLength == 0) {
+                    // closed, and all the records have been written
+                    return;
+                }
+                // the continuous part of the ring, the receiving thread writes only out of it
+                offset = captureBufferHead;
+                length = Math.min(captureBufferLength, captureBuffer.length - captureBufferHead);
+            }
+
+            boolean isWritten = true;
+            try {
+                outputStream.write(captureBuffer, offset, length);
+            } catch (IOException e) {
+                isWritten = false;
+            }
+
+            synchronized (this) {
+                if (isWritten) {
+                    captureBufferHead = (captureBufferHead + length) % captureBuffer.length;
+                    captureBufferLength -= length;
+                } else {
+                    // the rest of the records are discarded
+                    isError = true;
+                    captureBufferHead = 0;
+                    captureBufferLength = 0;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the captured records have been written to the stream
+     *
+     * @throws InterruptedIOException if the current thread has been interrupted while waiting
+     */
+    private synchronized void waitForCapturedRecords() throws InterruptedIOException {
+        while (captureBufferLength > 0 && writerThread.isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while writing the captured packets");
+            }
+        }
+    }
+
+    /**
+     * Checks the packets have been failed to write, or the packet was too long to capture<br />
+     * After the failure, the packets are not written any more.
+     *
+     * @return true if the stream has been failed
+     */
+    public synchronized boolean checkError() {
+        return isError;
+    }
+
+    /**
+     * Writes the buffered packets to the stream<br />
+     * Waits for the writer's thread to write the captured packets.
+     *
+     * @throws IOException if the stream couldn't be written
+     */
+    public void flush() throws IOException {
+        waitForCapturedRecords();
+        // without the lock, the receiving thread isn't blocked by the stream
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the captured packets, stops the writer's thread, and closes the stream<br />
+     * The packets after this call are not captured.
+     *
+     * @throws IOException if the stream couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            isClosed = true;
+            notifyAll();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing the captured packets");
+        }
+        outputStream.close();
+    }
+}
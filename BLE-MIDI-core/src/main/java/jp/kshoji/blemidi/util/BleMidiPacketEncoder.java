@@ -0,0 +1,141 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes MIDI messages into BLE MIDI packets<br />
+ * The short messages are appended to one packet with {@link #addMessage(int, byte[])}, the packet starts with the header byte, and each message starts with the timestamp byte.<br />
+ * SysEx messages are split into the packets with {@link #encodeSystemExclusivePacket(byte[], int, int, int)}.<br />
+ * This class is not thread-safe.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiPacketEncoder {
+    public static final int MAX_TIMESTAMP = 8192;
+
+    private final ByteArrayOutputStream packetStream = new ByteArrayOutputStream();
+
+    /**
+     * Obtains the BLE MIDI timestamp of the time<br />
+     * Also obtains the original timestamp of the received message from its sender time, see {@link jp.kshoji.blemidi.listener.OnMidiInputMessageListener}.
+     *
+     * @param time the time in nanoseconds, in {@link System#nanoTime()} base or the sender's time, may be negative
+     * @return the timestamp in milliseconds, 0 to {@link #MAX_TIMESTAMP} - 1
+     */
+    public static int getTimestamp(long time) {
+        // System.nanoTime() may be negative, the remainder must not be
+        return (int) Math.floorMod(Math.floorDiv(time, 1000000L), (long) MAX_TIMESTAMP);
+    }
+
+    /**
+     * Obtains the header byte of the packet
+     *
+     * @param timestamp the timestamp in milliseconds
+     * @return the header byte, contains the higher 6 bits of the timestamp
+     */
+    public static int getHeaderByte(int timestamp) {
+        return 0x80 | ((timestamp >> 7) & 0x3f);
+    }
+
+    /**
+     * Obtains the timestamp byte before the message
+     *
+     * @param timestamp the timestamp in milliseconds
+     * @return the timestamp byte, contains the lower 7 bits of the timestamp
+     */
+    public static int getTimestampByte(int timestamp) {
+        return 0x80 | (timestamp & 0x7f);
+    }
+
+    /**
+     * Appends the short message to the packet
+     *
+     * @param timestamp the timestamp in milliseconds
+     * @param message the MIDI message bytes
+     */
+    public void addMessage(int timestamp, @NotNull byte[] message) {
+        if (packetStream.size() == 0) {
+            packetStream.write(getHeaderByte(timestamp));
+        }
+        packetStream.write(getTimestampByte(timestamp));
+        packetStream.write(message, 0, message.length);
+    }
+
+    /**
+     * Obtains the length of the packet
+     *
+     * @return the length in bytes, 0 if no messages have been added
+     */
+    public int size() {
+        return packetStream.size();
+    }
+
+    /**
+     * Obtains the packet
+     *
+     * @return the copy of the packet
+     */
+    @NotNull
+    public byte[] toByteArray() {
+        return packetStream.toByteArray();
+    }
+
+    /**
+     * Clears the packet, to start the next packet
+     */
+    public void reset() {
+        packetStream.reset();
+    }
+
+    /**
+     * Adds the timestamp bytes to the SysEx message: before the first byte(0xF0), and before the last byte(0xF7)
+     *
+     * @param systemExclusive the SysEx message, starts with 0xF0, and ends with 0xF7
+     * @param timestamp the timestamp in milliseconds
+     * @return the message with the timestamp bytes
+     */
+    @NotNull
+    public static byte[] addSystemExclusiveTimestamps(@NotNull byte[] systemExclusive, int timestamp) {
+        final byte[] message = new byte[systemExclusive.length + 2];
+        System.arraycopy(systemExclusive, 0, message, 1, systemExclusive.length);
+
+        // extend a byte for timestamp LSB, before the last byte('F7')
+        message[systemExclusive.length + 1] = systemExclusive[systemExclusive.length - 1];
+        // set first byte to timestamp LSB
+        message[0] = (byte) getTimestampByte(timestamp);
+        setSystemExclusiveEndTimestamp(message, timestamp);
+        return message;
+    }
+
+    /**
+     * Updates the timestamp byte before the last byte(0xF7) of the message
+     *
+     * @param message the message created with {@link #addSystemExclusiveTimestamps(byte[], int)}
+     * @param timestamp the timestamp in milliseconds
+     */
+    public static void setSystemExclusiveEndTimestamp(@NotNull byte[] message, int timestamp) {
+        // Don't send 0xF7 timestamp LSB inside of SysEx(MIDI parser will fail) 0x7f -> 0x7e
+        message[message.length - 2] = (byte) (0x80 | (timestamp & 0x7e));
+    }
+
+    /**
+     * Creates the packet contains the part of SysEx message<br />
+     * The message is split into (bufferSize - 1) bytes, because the packet starts with the header byte.
+     *
+     * @param message the message created with {@link #addSystemExclusiveTimestamps(byte[], int)}
+     * @param offset the offset of the part in the message
+     * @param bufferSize the maximum length of the packet, MTU - 3
+     * @param timestamp the timestamp in milliseconds
+     * @return the packet
+     */
+    @NotNull
+    public static byte[] encodeSystemExclusivePacket(@NotNull byte[] message, int offset, int bufferSize, int timestamp) {
+        final int length = Math.min(bufferSize - 1, message.length - offset);
+        final byte[] packet = new byte[length + 1];
+        packet[0] = (byte) getHeaderByte(timestamp);
+        System.arraycopy(message, offset, packet, 1, length);
+        return packet;
+    }
+}
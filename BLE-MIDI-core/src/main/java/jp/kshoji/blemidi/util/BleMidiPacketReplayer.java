@@ -0,0 +1,157 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the packets captured with {@link BleMidiPacketCaptureWriter} to {@link BleMidiParser}<br />
+ * The packets are parsed with the arrival time keeping the captured intervals, so the timestamps are reconstructed as the same as the capture.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiPacketReplayer implements Closeable {
+    private final InputStream inputStream;
+    private byte[] packet = new byte[64];
+
+    /**
+     * Constructor
+     *
+     * @param inputStream the stream written with {@link BleMidiPacketCaptureWriter}
+     * @throws IOException if the stream is not the capture, or couldn't be read
+     */
+    public BleMidiPacketReplayer(@NotNull InputStream inputStream) throws IOException {
+        this.inputStream = new BufferedInputStream(inputStream);
+
+        for (byte magic : BleMidiPacketCaptureWriter.MAGIC) {
+            if (readByte() != (magic & 0xff)) {
+                throw new IOException("not a BLE MIDI packet capture");
+            }
+        }
+        final int version = readByte();
+        if (version != BleMidiPacketCaptureWriter.VERSION) {
+            throw new IOException("unsupported capture version: " + version);
+        }
+    }
+
+    /**
+     * Feeds all the remaining packets to the parser<br />
+     * In the fast mode, the parser is switched to the manual dispatch mode while replaying, and the events are fired on the calling thread with the captured time.
+     * All the events have been fired when this method returns.
+     *
+     * @param parser the parser
+     * @param isRealTime true to wait for the captured intervals, false to feed the packets and fire the events as fast as possible
+     * @return the count of fed packets
+     * @throws IOException if the stream couldn't be read
+     * @throws InterruptedException if the thread has been interrupted while waiting
+     */
+    public int replay(@NotNull BleMidiParser parser, boolean isRealTime) throws IOException, InterruptedException {
+        final long startTime = System.nanoTime();
+        long capturedTime = 0;
+        int packetCount = 0;
+
+        final boolean isManualDispatch = parser.isManualDispatch();
+        if (!isRealTime) {
+            parser.setManualDispatch(true);
+        }
+        try {
+            int firstByte;
+            while ((firstByte = inputStream.read()) != -1) {
+                capturedTime += readVariableLength(firstByte);
+                final long length = readVariableLength(readByte());
+                if (length > BleMidiPacketCaptureWriter.MAX_PACKET_LENGTH) {
+                    throw new IOException("invalid packet length: " + length);
+                }
+                readPacket((int) length);
+
+                final long arrivalTime = startTime + capturedTime;
+                if (isRealTime) {
+                    final long waitTime = arrivalTime - System.nanoTime();
+                    if (waitTime > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitTime);
+                    }
+                } else {
+                    // the captured time is the clock: fire the events before this packet arrives
+                    parser.dispatchDueEvents(arrivalTime);
+                }
+
+                parser.parse(packet, 0, (int) length, arrivalTime);
+                packetCount++;
+            }
+        } finally {
+            if (!isRealTime) {
+                parser.dispatchDueEvents(Long.MAX_VALUE);
+                parser.setManualDispatch(isManualDispatch);
+            }
+        }
+
+        return packetCount;
+    }
+
+    /**
+     * Reads the packet bytes to the buffer
+     *
+     * @param length the length of the packet
+     * @throws IOException if the stream couldn't be read
+     */
+    private void readPacket(int length) throws IOException {
+        if (packet.length < length) {
+            packet = new byte[Math.max(length, packet.length * 2)];
+        }
+
+        int offset = 0;
+        while (offset < length) {
+            final int readLength = inputStream.read(packet, offset, length - offset);
+            if (readLength < 0) {
+                throw new EOFException("the packet has been truncated");
+            }
+            offset += readLength;
+        }
+    }
+
+    /**
+     * Reads the unsigned LEB128 value
+     *
+     * @param firstByte the first byte of the value
+     * @return the value
+     * @throws IOException if the stream couldn't be read
+     */
+    private long readVariableLength(int firstByte) throws IOException {
+        long value = firstByte & 0x7f;
+        int shift = 7;
+        int data = firstByte;
+        while ((data & 0x80) != 0) {
+            if (shift > 56) {
+                throw new IOException("invalid variable length value");
+            }
+            data = readByte();
+            value |= (long) (data & 0x7f) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    /**
+     * Reads one byte
+     *
+     * @return the byte, 0 to 255
+     * @throws IOException if the stream has been ended, or couldn't be read
+     */
+    private int readByte() throws IOException {
+        final int data = inputStream.read();
+        if (data < 0) {
+            throw new EOFException("the capture has been truncated");
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
@@ -0,0 +1,2359 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiInputMessageListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener;
+
+/**
+ * BLE MIDI Parser<br />
+ * The protocol compatible with Apple's `MIDI over Bluetooth LE` specification.<br />
+ * One BleMidiParser instance belongs to one MidiInputDevice instance.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiParser {
+    // MIDI event message
+    private int midiEventKind;
+    private int midiEventNote;
+    private int runningStatus;
+
+    // for RPN/NRPN messages
+    private static final int RPN_STATUS_NONE = 0;
+    private static final int RPN_STATUS_RPN = 1;
+    private static final int RPN_STATUS_NRPN = 2;
+    private final int[] rpnStatus = new int[16];
+    private final int[] rpnFunctionMsb = new int[16];
+    private final int[] rpnFunctionLsb = new int[16];
+    private final int[] nrpnFunctionMsb = new int[16];
+    private final int[] nrpnFunctionLsb = new int[16];
+
+    // the 14bit values, indexed with the channel and the function
+    // the rows of channels are allocated at first use
+    private static final int RPN_NRPN_FUNCTION_COUNT = 1 << 14;
+    private final short[][] rpnValues = new short[16][];
+    private final short[][] nrpnValues = new short[16][];
+
+    // for SysEx messages
+    private final ReusableByteArrayOutputStream systemExclusiveStream = new ReusableByteArrayOutputStream();
+    // the byte replaced with 0xF7 at the end of last message, -1 if the last message can't be recovered
+    private int systemExclusiveRecoveryByte = -1;
+    private final SystemExclusiveBufferPool systemExclusiveBufferPool = new SystemExclusiveBufferPool();
+    private volatile boolean isSystemExclusiveBufferRecycling = false;
+    private volatile int systemExclusiveMaxLength = Integer.MAX_VALUE;
+    private int systemExclusiveLength;
+    private boolean isSystemExclusiveAborted;
+    // the previous byte in the SysEx message, the byte with the high bit set may be the timestamp of System Real-Time message
+    private int systemExclusivePreviousByte;
+
+    // for SysEx messages, delivered incrementally
+    private static final int SYSTEM_EXCLUSIVE_CHUNK_SIZE = 512;
+    private volatile OnMidiSystemExclusiveChunkListener systemExclusiveChunkListener = null;
+    private OnMidiSystemExclusiveChunkListener currentSystemExclusiveChunkListener = null;
+    private final byte[] systemExclusiveChunk = new byte[SYSTEM_EXCLUSIVE_CHUNK_SIZE];
+    private int systemExclusiveChunkLength;
+    // the last received byte, it may be the timestamp before 0xF7
+    private int systemExclusivePendingByte;
+    // 0xF7 after the data byte: the end of message, or the timestamp 0xF7 before the end, settled with the next byte
+    private boolean isSystemExclusiveEndPending;
+
+    // states
+    private static final int MIDI_STATE_TIMESTAMP = 0;
+    private static final int MIDI_STATE_WAIT = 1;
+    private static final int MIDI_STATE_DATA_1 = 2;
+    private static final int MIDI_STATE_DATA_2 = 3;
+    private static final int MIDI_STATE_SIGNAL_SYSEX = 4;
+    private int midiState;
+
+    // the tables indexed with the status byte
+    // the event type of the message
+    private static final int[] STATUS_EVENT_TYPE = new int[256];
+    // the count of data bytes following the status byte
+    private static final int[] STATUS_DATA_LENGTH = new int[256];
+    // the state after the status byte
+    private static final int[] STATUS_NEXT_STATE = new int[256];
+    // the running status after the status byte
+    private static final int RUNNING_STATUS_KEEP = -1;
+    private static final int[] STATUS_RUNNING_STATUS = new int[256];
+
+    static {
+        for (int status = 0x80; status < 0x100; status++) {
+            int eventType;
+            int dataLength;
+            switch (status & 0xf0) {
+                case 0x80:
+                    eventType = MidiEventType.NOTE_OFF;
+                    dataLength = 2;
+                    break;
+                case 0x90:
+                    eventType = MidiEventType.NOTE_ON;
+                    dataLength = 2;
+                    break;
+                case 0xa0:
+                    eventType = MidiEventType.POLYPHONIC_AFTERTOUCH;
+                    dataLength = 2;
+                    break;
+                case 0xb0:
+                    eventType = MidiEventType.CONTROL_CHANGE;
+                    dataLength = 2;
+                    break;
+                case 0xc0:
+                    eventType = MidiEventType.PROGRAM_CHANGE;
+                    dataLength = 1;
+                    break;
+                case 0xd0:
+                    eventType = MidiEventType.CHANNEL_AFTERTOUCH;
+                    dataLength = 1;
+                    break;
+                case 0xe0:
+                    eventType = MidiEventType.PITCH_WHEEL;
+                    dataLength = 2;
+                    break;
+                default:
+                    eventType = MidiEventType.NONE;
+                    dataLength = 0;
+                    break;
+            }
+
+            if (eventType != MidiEventType.NONE) {
+                // channel messages become the running status
+                STATUS_EVENT_TYPE[status] = eventType;
+                STATUS_DATA_LENGTH[status] = dataLength;
+                STATUS_NEXT_STATE[status] = MIDI_STATE_DATA_1;
+                STATUS_RUNNING_STATUS[status] = status;
+            } else {
+                // undefined system messages are ignored, and keep the running status
+                STATUS_EVENT_TYPE[status] = MidiEventType.NONE;
+                STATUS_NEXT_STATE[status] = MIDI_STATE_WAIT;
+                STATUS_RUNNING_STATUS[status] = RUNNING_STATUS_KEEP;
+            }
+        }
+
+        // system common messages cancel the running status
+        STATUS_NEXT_STATE[0xf0] = MIDI_STATE_SIGNAL_SYSEX;
+        STATUS_EVENT_TYPE[0xf0] = MidiEventType.SYSTEM_EXCLUSIVE;
+        STATUS_RUNNING_STATUS[0xf0] = 0;
+        setSystemMessage(0xf1, MidiEventType.TIME_CODE_QUARTER_FRAME, 1, 0);
+        setSystemMessage(0xf2, MidiEventType.SONG_POSITION_POINTER, 2, 0);
+        setSystemMessage(0xf3, MidiEventType.SONG_SELECT, 1, 0);
+        setSystemMessage(0xf6, MidiEventType.TUNE_REQUEST, 0, 0);
+
+        // system real time messages keep the running status
+        setSystemMessage(0xf8, MidiEventType.TIMING_CLOCK, 0, RUNNING_STATUS_KEEP);
+        setSystemMessage(0xfa, MidiEventType.START, 0, RUNNING_STATUS_KEEP);
+        setSystemMessage(0xfb, MidiEventType.CONTINUE, 0, RUNNING_STATUS_KEEP);
+        setSystemMessage(0xfc, MidiEventType.STOP, 0, RUNNING_STATUS_KEEP);
+        setSystemMessage(0xfe, MidiEventType.ACTIVE_SENSING, 0, RUNNING_STATUS_KEEP);
+        setSystemMessage(0xff, MidiEventType.RESET, 0, RUNNING_STATUS_KEEP);
+    }
+
+    /**
+     * Sets the status tables for the system message
+     *
+     * @param status the status byte
+     * @param eventType the event type
+     * @param dataLength the count of data bytes
+     * @param runningStatus the running status after the message
+     */
+    private static void setSystemMessage(int status, int eventType, int dataLength, int runningStatus) {
+        STATUS_EVENT_TYPE[status] = eventType;
+        STATUS_DATA_LENGTH[status] = dataLength;
+        STATUS_NEXT_STATE[status] = dataLength == 0 ? MIDI_STATE_TIMESTAMP : MIDI_STATE_DATA_1;
+        STATUS_RUNNING_STATUS[status] = runningStatus;
+    }
+
+    // for Timestamp
+    private static final int MAX_TIMESTAMP = 8192;
+    private static final long MAX_TIMESTAMP_NANOS = MAX_TIMESTAMP * 1000000L;
+    private int timestamp = 0;
+    // the timestampHigh of the packet, incremented when the timestampLow wraps around in the packet
+    private int timestampHigh = 0;
+    private int lastTimestampLow = -1;
+    // the state before the timestamp of the last buffered SysEx, restored when the SysEx is recovered
+    private int systemExclusiveRecoveryTimestampHigh = 0;
+    private int systemExclusiveRecoveryTimestampLow = -1;
+    private long arrivalTime = 0;
+    private long senderTimeMillis;
+    // the sender's time of the last calculated event, in nanoseconds
+    private long eventSenderTime = OnMidiInputMessageListener.SENDER_TIME_UNKNOWN;
+    private long lastTimestampRecorded = 0;
+    private boolean hasLastTimestamp = false;
+    private final BleMidiClockEstimator clockEstimator = new BleMidiClockEstimator();
+    private final BleMidiJitterBuffer jitterBuffer = new BleMidiJitterBuffer();
+    private int zeroTimestampCount = 0;
+    private Boolean isTimestampAlwaysZero = null;
+
+    private volatile MidiInputEventListenerAdapter midiInputEventListenerAdapter = null;
+    private volatile OnMidiInputMessageListener midiInputMessageListener = null;
+    private volatile OnMidiInputEventBatchListener midiInputEventBatchListener = null;
+    private volatile BleMidiPacketCaptureWriter packetCaptureWriter = null;
+    private final MidiEventBatch dispatchedEventBatch = new MidiEventBatch();
+    private final MidiEventBatch immediateEventBatch = new MidiEventBatch();
+    private volatile int immediateDispatchEventTypes = MidiEventType.NONE;
+    private final MidiEventWithTiming immediateEvent = new MidiEventWithTiming();
+    private final MidiInputDevice sender;
+
+    // for the coalescing in one dispatch
+    private volatile int coalescedEventTypes = MidiEventType.NONE;
+    private MidiEventWithTiming[] dispatchingEvents = new MidiEventWithTiming[64];
+    private final CoalescingIndex coalescingIndex = new CoalescingIndex();
+
+    // the event types delivered to the listeners, the others are dropped while parsing
+    private volatile int subscribedEventTypes = MidiEventType.ALL;
+
+    private static volatile boolean useSharedEventDispatcher = false;
+    private final BleMidiEventDispatcher eventDispatcher;
+
+    // for the dispatch target
+    private final Object dispatchLock = new Object();
+    private volatile Executor dispatchExecutor = null;
+    private volatile boolean isManualDispatch = false;
+    private final AtomicBoolean isDrainPosted = new AtomicBoolean(false);
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isDrainPosted.set(false);
+            if (isRunning) {
+                fireDueEvents(System.nanoTime(), Integer.MAX_VALUE);
+            }
+
+            // the dispatcher sleeps until the next event's timing
+            eventDispatcher.wakeUp();
+        }
+    };
+
+    private volatile boolean isRunning = false;
+    private volatile boolean isTerminated = false;
+
+    // for the dispatch lateness
+    private volatile long lastEventLatenessNanos = 0;
+    private volatile long maxEventLatenessNanos = 0;
+
+    // for the queue overflow
+    private static final int DEFAULT_EVENT_QUEUE_CAPACITY = 8192;
+    // the events can be overwritten with the newer value, with COALESCE policy
+    private static final int COALESCIBLE_EVENT_TYPES = MidiEventType.POLYPHONIC_AFTERTOUCH | MidiEventType.CONTROL_CHANGE | MidiEventType.CHANNEL_AFTERTOUCH | MidiEventType.PITCH_WHEEL | MidiEventType.RPN | MidiEventType.NRPN;
+    // the coalescible events distinguished with the first data: note, control function, or parameter number
+    private static final int PARAMETER_EVENT_TYPES = MidiEventType.POLYPHONIC_AFTERTOUCH | MidiEventType.CONTROL_CHANGE | MidiEventType.RPN | MidiEventType.NRPN;
+    // the control changes never coalesced, bit flags of the control function 0-63 and 64-127
+    // 6, 38: data entry, 96-101: data increment/decrement and the parameter number of RPN/NRPN, 64-69: the switches like the sustain pedal
+    private static final long NON_COALESCIBLE_CONTROL_FUNCTIONS_0_63 = 1L << 6 | 1L << 38;
+    private static final long NON_COALESCIBLE_CONTROL_FUNCTIONS_64_127 = 0x3fL | 0x3fL << (96 - 64);
+    private volatile int eventQueueCapacity = DEFAULT_EVENT_QUEUE_CAPACITY;
+    private volatile int eventQueueOverflowPolicy = MidiEventQueueOverflowPolicy.DROP_OLDEST;
+    private volatile long droppedEventCount = 0;
+    private volatile long eventQueueOverflowCount = 0;
+    private boolean isIngressBlocked = false;
+    // the latest queued events to be overwritten with COALESCE policy, and the latest queued note event
+    private final CoalescibleEventIndex coalescibleEventIndex = new CoalescibleEventIndex();
+    private long lastQueuedNoteSequence = -1;
+
+    /**
+     * Constructor
+     *
+     * @param sender the sender
+     */
+    public BleMidiParser(@NotNull final MidiInputDevice sender) {
+        this.sender = sender;
+
+        midiState = MIDI_STATE_TIMESTAMP;
+        midiEventKind = 0;
+        midiEventNote = 0;
+        runningStatus = 0;
+
+        // RPN null, NRPN null
+        Arrays.fill(rpnFunctionMsb, 0x7f);
+        Arrays.fill(rpnFunctionLsb, 0x7f);
+        Arrays.fill(nrpnFunctionMsb, 0x7f);
+        Arrays.fill(nrpnFunctionLsb, 0x7f);
+
+        if (useSharedEventDispatcher) {
+            eventDispatcher = BleMidiEventDispatcher.getSharedInstance();
+        } else {
+            eventDispatcher = BleMidiEventDispatcher.newInstance();
+        }
+        eventDispatcher.register(this);
+    }
+
+    /**
+     * Sets whether the parsers share one event dispatching thread<br />
+     * Affects the parsers created after this call.
+     *
+     * @param useSharedEventDispatcher true: all parsers share one {@link BleMidiEventDispatcher}, false: each parser has its own thread(default)
+     */
+    public static void setUseSharedEventDispatcher(boolean useSharedEventDispatcher) {
+        BleMidiParser.useSharedEventDispatcher = useSharedEventDispatcher;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener}
+     *
+     * @param midiInputEventListener the listener for MIDI events
+     */
+    public void setMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        this.midiInputEventListenerAdapter = midiInputEventListener == null ? null : new MidiInputEventListenerAdapter(midiInputEventListener);
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiInputMessageListener}
+     *
+     * @param midiInputMessageListener the listener for MIDI messages, receives each message packed into one int
+     */
+    public void setMidiInputMessageListener(@Nullable OnMidiInputMessageListener midiInputMessageListener) {
+        this.midiInputMessageListener = midiInputMessageListener;
+    }
+
+    /**
+     * Obtains how late the last event has been fired, compared with its target timing
+     *
+     * @return the lateness in nanoseconds
+     */
+    public long getLastEventLatenessNanos() {
+        return lastEventLatenessNanos;
+    }
+
+    /**
+     * Obtains how late the latest event has been fired, compared with its target timing, since the last reset
+     *
+     * @return the maximum lateness in nanoseconds
+     */
+    public long getMaxEventLatenessNanos() {
+        return maxEventLatenessNanos;
+    }
+
+    /**
+     * Resets the maximum event lateness
+     */
+    public void resetMaxEventLatenessNanos() {
+        maxEventLatenessNanos = 0;
+    }
+
+    /**
+     * Sets the capacity of the event queue, and the policy when the queue is full
+     *
+     * @param capacity the maximum count of queued events, default: 8192
+     * @param overflowPolicy one of {@link MidiEventQueueOverflowPolicy}, default: {@link MidiEventQueueOverflowPolicy#DROP_OLDEST}
+     */
+    public void setEventQueueCapacity(int capacity, int overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be 1 or more");
+        }
+        if (overflowPolicy < MidiEventQueueOverflowPolicy.DROP_OLDEST || overflowPolicy > MidiEventQueueOverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("unknown overflow policy: " + overflowPolicy);
+        }
+        synchronized (queuedEventList) {
+            eventQueueCapacity = capacity;
+            if (eventQueueOverflowPolicy != overflowPolicy) {
+                // the events are indexed only with COALESCE policy
+                coalescibleEventIndex.clear();
+                lastQueuedNoteSequence = -1;
+            }
+            eventQueueOverflowPolicy = overflowPolicy;
+            queuedEventList.notifyAll();
+        }
+    }
+
+    /**
+     * Obtains the count of events dropped, or overwritten with the newer value, because the event queue was full
+     *
+     * @return the count of events
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount;
+    }
+
+    /**
+     * Obtains the count of events arrived while the event queue was full
+     *
+     * @return the count of events
+     */
+    public long getEventQueueOverflowCount() {
+        return eventQueueOverflowCount;
+    }
+
+    /**
+     * Resets the counts of dropped events, and overflows
+     */
+    public void resetEventQueueCounters() {
+        synchronized (queuedEventList) {
+            droppedEventCount = 0;
+            eventQueueOverflowCount = 0;
+        }
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener}<br />
+     * While the listener is set, SysEx messages are delivered incrementally with this listener, not with {@link OnMidiInputEventListener}.
+     *
+     * @param systemExclusiveChunkListener the listener for SysEx messages, receives the message incrementally
+     */
+    public void setSystemExclusiveChunkListener(@Nullable OnMidiSystemExclusiveChunkListener systemExclusiveChunkListener) {
+        this.systemExclusiveChunkListener = systemExclusiveChunkListener;
+    }
+
+    /**
+     * Sets the maximum length of SysEx message<br />
+     * The longer message is aborted, and the rest of message is ignored.
+     *
+     * @param systemExclusiveMaxLength the maximum length in bytes, includes 0xF0 and 0xF7, default: no limit
+     */
+    public void setSystemExclusiveMaxLength(int systemExclusiveMaxLength) {
+        if (systemExclusiveMaxLength < 2) {
+            throw new IllegalArgumentException("systemExclusiveMaxLength must be 2 or more");
+        }
+        this.systemExclusiveMaxLength = systemExclusiveMaxLength;
+    }
+
+    /**
+     * Sets the SysEx array recycling<br />
+     * If enabled, the array passed to {@link OnMidiInputEventListener#onMidiSystemExclusive(MidiInputDevice, byte[])} is reused after the listener returns.
+     * The listener must copy the data to keep it.
+     *
+     * @param isSystemExclusiveBufferRecycling true to recycle the arrays, default: false
+     */
+    public void setSystemExclusiveBufferRecycling(boolean isSystemExclusiveBufferRecycling) {
+        this.isSystemExclusiveBufferRecycling = isSystemExclusiveBufferRecycling;
+        if (!isSystemExclusiveBufferRecycling) {
+            systemExclusiveBufferPool.clear();
+        }
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiInputEventBatchListener}
+     *
+     * @param midiInputEventBatchListener the listener for MIDI events, receives all the events fired at once
+     */
+    public void setMidiInputEventBatchListener(@Nullable OnMidiInputEventBatchListener midiInputEventBatchListener) {
+        this.midiInputEventBatchListener = midiInputEventBatchListener;
+    }
+
+    /**
+     * Sets {@link BleMidiPacketCaptureWriter}<br />
+     * While the writer is set, the received packets are written with their arrival time.<br />
+     * The parsing thread only copies the packets to the writer's buffer, the stream is written on the writer's own thread.
+     * Close the writer after removing it, to write the rest of the packets.
+     *
+     * @param packetCaptureWriter the writer for the received packets, null to stop capturing
+     */
+    public void setPacketCaptureWriter(@Nullable BleMidiPacketCaptureWriter packetCaptureWriter) {
+        this.packetCaptureWriter = packetCaptureWriter;
+    }
+
+    /**
+     * Sets the event types fired immediately when the data arrives<br />
+     * The events are fired on the receiving thread, without waiting for their timestamp.
+     *
+     * @param eventTypes the bit flags of {@link MidiEventType}, {@link MidiEventType#NONE} to fire all events with their timestamp(default)
+     */
+    public void setImmediateDispatchEventTypes(int eventTypes) {
+        immediateDispatchEventTypes = eventTypes;
+    }
+
+    /**
+     * Obtains the event types fired immediately when the data arrives
+     *
+     * @return the bit flags of {@link MidiEventType}
+     */
+    public int getImmediateDispatchEventTypes() {
+        return immediateDispatchEventTypes;
+    }
+
+    /**
+     * Sets the executor to fire the events<br />
+     * The listeners are called on the executor's thread, instead of the dispatching thread.
+     * The immediately fired events are fired on the receiving thread regardless of this setting.<br />
+     * The executor must run every task, or throw {@link RejectedExecutionException}: the events are fired on the dispatching thread instead.
+     * If the executor drops the task silently, the events are never fired again.
+     *
+     * @param executor the executor, null to fire on the dispatching thread
+     */
+    public void setDispatchExecutor(@Nullable Executor executor) {
+        dispatchExecutor = executor;
+        eventDispatcher.wakeUp();
+    }
+
+    /**
+     * Sets the manual dispatch mode<br />
+     * In the manual dispatch mode, the events are fired only with {@link #dispatchDueEvents()}, on the calling thread.
+     * Use this mode to fire the events directly on the thread consumes them, like the audio thread.
+     *
+     * @param isManualDispatch true to fire the events manually, default: false
+     */
+    public void setManualDispatch(boolean isManualDispatch) {
+        this.isManualDispatch = isManualDispatch;
+        eventDispatcher.wakeUp();
+    }
+
+    /**
+     * Obtains the manual dispatch mode
+     *
+     * @return true if the events are fired manually
+     */
+    public boolean isManualDispatch() {
+        return isManualDispatch;
+    }
+
+    /**
+     * Fires the events reached to their timing, on the calling thread<br />
+     * Call this method periodically in the manual dispatch mode.
+     *
+     * @return the count of fired events
+     */
+    public int dispatchDueEvents() {
+        return dispatchDueEvents(System.nanoTime());
+    }
+
+    /**
+     * Fires the events reached to the specified time, on the calling thread<br />
+     * Used to fire the replayed events with the captured time, see {@link BleMidiPacketReplayer}.
+     *
+     * @param currentTime the current time, in {@link System#nanoTime()} base
+     * @return the count of fired events
+     */
+    int dispatchDueEvents(final long currentTime) {
+        if (!isRunning) {
+            return 0;
+        }
+        return fireDueEvents(currentTime, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sets the event types coalesced in one dispatch<br />
+     * When the multiple events with the same channel and the same controller/note reach to their timing together, only the latest event is fired.<br />
+     * Only the continuous controller events can be coalesced: {@link MidiEventType#POLYPHONIC_AFTERTOUCH}, {@link MidiEventType#CONTROL_CHANGE}, {@link MidiEventType#CHANNEL_AFTERTOUCH}, {@link MidiEventType#PITCH_WHEEL}, {@link MidiEventType#RPN}, {@link MidiEventType#NRPN}.
+     * The other types are ignored.<br />
+     * The events are never coalesced across a note event, and the control changes of the data entry, the RPN/NRPN parameter number, and the switches (64-69, like the sustain pedal) are never coalesced.
+     *
+     * @param eventTypes the bit flags of {@link MidiEventType}, default: {@link MidiEventType#NONE}
+     */
+    public void setCoalescedEventTypes(int eventTypes) {
+        coalescedEventTypes = eventTypes & COALESCIBLE_EVENT_TYPES;
+    }
+
+    /**
+     * Obtains the event types coalesced in one dispatch
+     *
+     * @return the bit flags of {@link MidiEventType}
+     */
+    public int getCoalescedEventTypes() {
+        return coalescedEventTypes;
+    }
+
+    /**
+     * Sets the event types delivered to the listeners<br />
+     * The other types are dropped while parsing, without queueing. The SysEx messages are not assembled while {@link MidiEventType#SYSTEM_EXCLUSIVE} is not subscribed.<br />
+     * RPN/NRPN are tracked even if {@link MidiEventType#CONTROL_CHANGE} is not subscribed.
+     *
+     * @param eventTypes the bit flags of {@link MidiEventType}, default: {@link MidiEventType#ALL}
+     */
+    public void setSubscribedEventTypes(int eventTypes) {
+        subscribedEventTypes = eventTypes & MidiEventType.ALL;
+    }
+
+    /**
+     * Obtains the event types delivered to the listeners
+     *
+     * @return the bit flags of {@link MidiEventType}
+     */
+    public int getSubscribedEventTypes() {
+        return subscribedEventTypes;
+    }
+
+    /**
+     * Obtains the adaptive jitter buffer for the timestamped events
+     *
+     * @return the jitter buffer
+     */
+    @NotNull
+    public BleMidiJitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    /**
+     * Obtains the estimator of the clock drift between the sender and the local clock
+     *
+     * @return the clock estimator
+     */
+    @NotNull
+    public BleMidiClockEstimator getClockEstimator() {
+        return clockEstimator;
+    }
+
+    /**
+     * Starts dispatching events
+     */
+    public void start() {
+        if (isTerminated) {
+            return;
+        }
+        isRunning = true;
+        eventDispatcher.wakeUp();
+    }
+
+    /**
+     * Stops dispatching events
+     */
+    public void stop() {
+        if (isTerminated) {
+            return;
+        }
+        isRunning = false;
+
+        // release the blocked receiving thread
+        synchronized (queuedEventList) {
+            queuedEventList.notifyAll();
+        }
+    }
+
+    /**
+     * Terminates dispatching events
+     */
+    public void terminate() {
+        if (isTerminated) {
+            return;
+        }
+        isTerminated = true;
+        isRunning = false;
+        synchronized (queuedEventList) {
+            queuedEventList.notifyAll();
+        }
+        eventDispatcher.unregister(this);
+        eventDispatcher.terminate();
+    }
+
+    /**
+     * MIDI event data, and firing timing<br />
+     * The instances are pooled, and reused after the event has been fired.
+     */
+    private static final class MidiEventWithTiming {
+        int kind;
+        int status;
+        int data1;
+        int data2;
+        byte[] array;
+        long timing;
+        // the reconstructed sender's time, and the packet's arrival time
+        long senderTime;
+        long arrivalTime;
+        long sortKey;
+        long sequence;
+        // true while the event is in the event queue
+        boolean isQueued;
+
+        // the next pooled instance
+        MidiEventWithTiming next;
+    }
+
+    /**
+     * Pool of the SysEx arrays<br />
+     * The arrays are reused for the messages with the same length, like the repeated patch dumps.
+     */
+    private static final class SystemExclusiveBufferPool {
+        private static final int POOL_SIZE = 8;
+        private final byte[][] buffers = new byte[POOL_SIZE][];
+
+        /**
+         * Obtains the array with the length
+         *
+         * @param length the length
+         * @return the pooled array, or new array
+         */
+        @NotNull
+        synchronized byte[] obtain(int length) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                final byte[] buffer = buffers[i];
+                if (buffer != null && buffer.length == length) {
+                    buffers[i] = null;
+                    return buffer;
+                }
+            }
+            return new byte[length];
+        }
+
+        /**
+         * Returns the array to the pool, the oldest array is discarded if the pool is full
+         *
+         * @param buffer the array
+         */
+        synchronized void recycle(@NotNull byte[] buffer) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                if (buffers[i] == null) {
+                    buffers[i] = buffer;
+                    return;
+                }
+            }
+            System.arraycopy(buffers, 1, buffers, 0, POOL_SIZE - 1);
+            buffers[POOL_SIZE - 1] = buffer;
+        }
+
+        /**
+         * Discards the pooled arrays
+         */
+        synchronized void clear() {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                buffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * The events collected for {@link OnMidiInputEventBatchListener}
+     */
+    private static final class MidiEventBatch {
+        private int[] status = new int[64];
+        private int[] data1 = new int[64];
+        private int[] data2 = new int[64];
+        private long[] timestamps = new long[64];
+        private long[] senderTimes = new long[64];
+        private long[] arrivalTimes = new long[64];
+        private int count = 0;
+
+        /**
+         * Adds the event, SysEx and RPN/NRPN are ignored
+         *
+         * @param event the event
+         */
+        void add(@NotNull MidiEventWithTiming event) {
+            if ((event.kind & (MidiEventType.SYSTEM_EXCLUSIVE | MidiEventType.RPN | MidiEventType.NRPN)) != 0) {
+                return;
+            }
+
+            if (count == status.length) {
+                final int newLength = count * 2;
+                final int[] newStatus = new int[newLength];
+                final int[] newData1 = new int[newLength];
+                final int[] newData2 = new int[newLength];
+                final long[] newTimestamps = new long[newLength];
+                final long[] newSenderTimes = new long[newLength];
+                final long[] newArrivalTimes = new long[newLength];
+                System.arraycopy(status, 0, newStatus, 0, count);
+                System.arraycopy(data1, 0, newData1, 0, count);
+                System.arraycopy(data2, 0, newData2, 0, count);
+                System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+                System.arraycopy(senderTimes, 0, newSenderTimes, 0, count);
+                System.arraycopy(arrivalTimes, 0, newArrivalTimes, 0, count);
+                status = newStatus;
+                data1 = newData1;
+                data2 = newData2;
+                timestamps = newTimestamps;
+                senderTimes = newSenderTimes;
+                arrivalTimes = newArrivalTimes;
+            }
+
+            status[count] = event.status;
+            data1[count] = event.data1;
+            data2[count] = event.data2;
+            timestamps[count] = event.timing;
+            senderTimes[count] = event.senderTime;
+            arrivalTimes[count] = event.arrivalTime;
+            count++;
+        }
+
+        /**
+         * Delivers the collected events to the listener, and clears them
+         *
+         * @param listener the listener
+         * @param sender the sender
+         */
+        void flush(@Nullable OnMidiInputEventBatchListener listener, @NotNull MidiInputDevice sender) {
+            if (count > 0 && listener != null) {
+                listener.onMidiInputEventBatch(sender, status, data1, data2, timestamps, senderTimes, arrivalTimes, count);
+            }
+            count = 0;
+        }
+    }
+
+    // pooled event instances, linked with MidiEventWithTiming.next
+    private final AtomicReference<MidiEventWithTiming> eventPool = new AtomicReference<>();
+
+    /**
+     * Obtains an event instance from the pool, called only from the parsing thread<br />
+     * The instances are pushed from any threads, but popped from the single thread, so the stack has no ABA problem.
+     *
+     * @return the event instance
+     */
+    @NotNull
+    private MidiEventWithTiming obtainEvent() {
+        MidiEventWithTiming event;
+        do {
+            event = eventPool.get();
+            if (event == null) {
+                // pool is empty: grows the pool
+                return new MidiEventWithTiming();
+            }
+        } while (!eventPool.compareAndSet(event, event.next));
+
+        event.next = null;
+        return event;
+    }
+
+    /**
+     * Returns the fired event instance to the pool
+     *
+     * @param event the event instance
+     */
+    private void recycleEvent(@NotNull MidiEventWithTiming event) {
+        recycleSystemExclusive(event.array);
+        event.array = null;
+        MidiEventWithTiming top;
+        do {
+            top = eventPool.get();
+            event.next = top;
+        } while (!eventPool.compareAndSet(top, event));
+    }
+
+    /**
+     * Calculates the priority of the event, fired at the same timing<br />
+     * The MIDI data priority order is: system message &gt; control messages &gt; note off &gt; note on
+     *
+     * @param status the MIDI status byte
+     * @return the priority 0 to 7, the smaller value fires first
+     */
+    private static int calculateEventPriority(final int status) {
+        int priority = status & 0xf0;
+
+        // swap the priority of note on, and note off
+        if ((priority & 0x90) == 0x80) {
+            priority |= 0x10;
+        } else {
+            priority &= ~0x10;
+        }
+
+        return (0xf0 - priority) >> 4;
+    }
+
+    /**
+     * Calculates the key to sort the queued events<br />
+     * The key packs the firing time in microseconds, and the priority (3 bits). The events with the same key are ordered with their arrival order.
+     *
+     * @param timing the firing time, in {@link System#nanoTime()} base
+     * @param status the MIDI status byte
+     * @return the key, the smaller value fires first
+     */
+    private long calculateEventSortKey(final long timing, final int status) {
+        final long time = Math.floorDiv(timing - sortKeyTimeBase, 1000L);
+        return (time << SORT_KEY_PRIORITY_BITS) | calculateEventPriority(status);
+    }
+
+    /**
+     * Sets the timestamps of the event, with the current timestamp
+     *
+     * @param event the event
+     */
+    private void setEventTiming(@NotNull MidiEventWithTiming event) {
+        event.arrivalTime = arrivalTime;
+        event.timing = calculateEventFireTime(timestamp);
+        event.senderTime = eventSenderTime;
+    }
+
+    /**
+     * Calculate the firing time for the event's timestamp
+     *
+     * @param timestamp the event's timestamp
+     * @return the firing time, in {@link System#nanoTime()} base
+     */
+    private long calculateEventFireTime(final int timestamp) {
+        final long currentTime = arrivalTime;
+        eventSenderTime = OnMidiInputMessageListener.SENDER_TIME_UNKNOWN;
+
+        // checks timestamp value is always zero
+        if (isTimestampAlwaysZero != null) {
+            if (isTimestampAlwaysZero) {
+                if (timestamp != 0) {
+                    // timestamp comes with non-zero. prevent misdetection
+                    isTimestampAlwaysZero = false;
+                    zeroTimestampCount = 0;
+                    hasLastTimestamp = false;
+                } else {
+                    // event fires immediately
+                    return currentTime;
+                }
+            } else {
+                if (timestamp == 0) {
+                    // recheck timestamp value on next time
+                    isTimestampAlwaysZero = null;
+                    zeroTimestampCount = 0;
+                    // event fires immediately
+                    return currentTime;
+                }
+            }
+        } else {
+            if (timestamp == 0) {
+                if (zeroTimestampCount >= 3) {
+                    // decides timestamp is always zero
+                    isTimestampAlwaysZero = true;
+                } else {
+                    zeroTimestampCount++;
+                }
+                // event fires immediately
+                return currentTime;
+            } else {
+                isTimestampAlwaysZero = false;
+                zeroTimestampCount = 0;
+                hasLastTimestamp = false;
+            }
+        }
+
+        if (!hasLastTimestamp) {
+            // first time: starts the sender's time base
+            senderTimeMillis = timestamp;
+            clockEstimator.reset();
+            jitterBuffer.reset();
+        } else {
+            final long elapsedNanos = currentTime - lastTimestampRecorded;
+
+            // unwrap the 13-bit timestamp: choose the value nearest to the expected sender's time
+            final long expectedTimestamp = senderTimeMillis + elapsedNanos / 1000000L;
+            final long timestampDifference = ((timestamp - expectedTimestamp + MAX_TIMESTAMP / 2) & (MAX_TIMESTAMP - 1)) - MAX_TIMESTAMP / 2;
+            senderTimeMillis = expectedTimestamp + timestampDifference;
+
+            if (elapsedNanos >= MAX_TIMESTAMP_NANOS) {
+                // the event comes after long pause: the unwrapped time may be inaccurate, measure the offset and the jitter again
+                clockEstimator.reset();
+                jitterBuffer.reset();
+            }
+        }
+        hasLastTimestamp = true;
+        lastTimestampRecorded = currentTime;
+
+        // map the sender's time to the local time, and absorb the arrival jitter
+        final long senderTimeNanos = senderTimeMillis * 1000000L;
+        eventSenderTime = senderTimeNanos;
+        clockEstimator.addSample(senderTimeNanos, currentTime);
+        return jitterBuffer.calculatePlayoutTime(clockEstimator.toLocalTime(senderTimeNanos), currentTime);
+    }
+
+    /**
+     * Fires the event to the listeners<br />
+     * The short message is packed into one int, and {@link OnMidiInputEventListener} is called through {@link MidiInputEventListenerAdapter}.
+     *
+     * @param event the event
+     */
+    private void fireEvent(@NotNull MidiEventWithTiming event) {
+        final OnMidiInputMessageListener messageListener = midiInputMessageListener;
+        final MidiInputEventListenerAdapter listenerAdapter = midiInputEventListenerAdapter;
+        if (messageListener == null && listenerAdapter == null) {
+            return;
+        }
+
+        switch (event.kind) {
+            case MidiEventType.SYSTEM_EXCLUSIVE:
+                if (messageListener != null) {
+                    messageListener.onMidiInputSystemExclusive(sender, event.array, event.timing, event.senderTime, event.arrivalTime);
+                }
+                if (listenerAdapter != null) {
+                    listenerAdapter.onMidiInputSystemExclusive(sender, event.array, event.timing, event.senderTime, event.arrivalTime);
+                }
+                break;
+            case MidiEventType.RPN:
+                // the control change messages have been fired already: queued before with the same timing and priority
+                if (listenerAdapter != null) {
+                    listenerAdapter.getMidiInputEventListener().onRPNMessage(sender, event.status & 0xf, event.data1 & 0x3fff, event.data2 & 0x3fff);
+                }
+                break;
+            case MidiEventType.NRPN:
+                if (listenerAdapter != null) {
+                    listenerAdapter.getMidiInputEventListener().onNRPNMessage(sender, event.status & 0xf, event.data1 & 0x3fff, event.data2 & 0x3fff);
+                }
+                break;
+            default:
+                final int message = PackedMidiMessage.pack(event.status, event.data1, event.data2, STATUS_DATA_LENGTH[event.status] + 1);
+                if (messageListener != null) {
+                    messageListener.onMidiInputMessage(sender, message, event.timing, event.senderTime, event.arrivalTime);
+                }
+                if (listenerAdapter != null) {
+                    listenerAdapter.onMidiInputMessage(sender, message, event.timing, event.senderTime, event.arrivalTime);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Parses MIDI events
+     *
+     * @param event the event byte
+     */
+    private void parseMidiEvent(final byte event) {
+        final int midiEvent = event & 0xff;
+
+        switch (midiState) {
+            case MIDI_STATE_TIMESTAMP:
+                if (midiEvent < 0x80) {
+                    // running status, without timestamp
+                    systemExclusiveRecoveryByte = -1;
+                    parseRunningStatus(midiEvent);
+                } else if (midiEvent == 0xf7) {
+                    // is this end of SysEx???
+                    if (systemExclusiveRecoveryByte >= 0) {
+                        // previous SysEx has been failed, due to timestamp was 0xF7
+                        // process SysEx again: restore the byte replaced with the previous 0xF7, which was for timestamp
+                        systemExclusiveStream.replaceLastByte(systemExclusiveRecoveryByte);
+                        systemExclusiveStream.write(midiEvent);
+                        timestampHigh = systemExclusiveRecoveryTimestampHigh;
+                        lastTimestampLow = systemExclusiveRecoveryTimestampLow;
+                        timestamp = calculateTimestamp(0xf7);
+
+                        addEventToQueue(MidiEventType.SYSTEM_EXCLUSIVE, 0xf0, 0, 0, copySystemExclusive());
+
+                        systemExclusiveRecoveryByte = -1;
+                    }
+                    // process next byte with state: MIDI_STATE_TIMESTAMP
+                } else {
+                    // there is no error. the last SysEx won't be recovered
+                    systemExclusiveRecoveryByte = -1;
+                    timestamp = calculateTimestamp(midiEvent);
+                    midiState = MIDI_STATE_WAIT;
+                }
+                break;
+
+            case MIDI_STATE_WAIT:
+                if (midiEvent < 0x80) {
+                    parseRunningStatus(midiEvent);
+                } else {
+                    parseStatus(midiEvent);
+                }
+                break;
+
+            case MIDI_STATE_DATA_1:
+                parseFirstData(midiEvent);
+                break;
+
+            case MIDI_STATE_DATA_2: {
+                final int eventType = STATUS_EVENT_TYPE[midiEventKind];
+                addEventToQueue(eventType, midiEventKind, midiEventNote, midiEvent, null);
+                if (eventType == MidiEventType.CONTROL_CHANGE) {
+                    // RPN/NRPN is queued after its control change message, and fired after it
+                    parseRpnNrpn(midiEventKind, midiEventNote, midiEvent);
+                }
+                midiState = MIDI_STATE_TIMESTAMP;
+                break;
+            }
+
+            case MIDI_STATE_SIGNAL_SYSEX:
+                if (midiEvent >= 0xf8 && systemExclusivePreviousByte >= 0x80 && !isSystemExclusiveEndPending) {
+                    // System Real-Time message interleaved in the SysEx message, the previous byte was its timestamp
+                    parseSystemExclusiveRealTime(midiEvent);
+                    systemExclusivePreviousByte = 0;
+                    break;
+                }
+                systemExclusivePreviousByte = midiEvent;
+
+                if (isSystemExclusiveEndPending) {
+                    settleSystemExclusiveChunkEnd(midiEvent);
+                } else if (isSystemExclusiveAborted) {
+                    // ignore the rest of aborted message
+                    if (midiEvent == 0xf7) {
+                        midiState = MIDI_STATE_TIMESTAMP;
+                    }
+                } else if (midiEvent != 0xf7 && ++systemExclusiveLength > systemExclusiveMaxLength) {
+                    abortSystemExclusive();
+                } else if (currentSystemExclusiveChunkListener != null) {
+                    parseSystemExclusiveChunk(midiEvent);
+                } else if (midiEvent == 0xf7) {
+                    // the end of message
+                    // last written byte is for timestamp
+                    int replacedEvent = systemExclusiveStream.replaceLastByte(midiEvent);
+                    systemExclusiveRecoveryTimestampHigh = timestampHigh;
+                    systemExclusiveRecoveryTimestampLow = lastTimestampLow;
+                    if (replacedEvent >= 0) {
+                        timestamp = calculateTimestamp(replacedEvent);
+                    }
+                    addEventToQueue(MidiEventType.SYSTEM_EXCLUSIVE, 0xf0, 0, 0, copySystemExclusive());
+
+                    // for error recovery, the stream is kept until the next message
+                    systemExclusiveRecoveryByte = replacedEvent;
+
+                    midiState = MIDI_STATE_TIMESTAMP;
+                } else {
+                    systemExclusiveStream.write(midiEvent);
+                }
+                break;
+
+            default:
+                // illegal state
+                midiState = MIDI_STATE_TIMESTAMP;
+                break;
+        }
+    }
+
+    /**
+     * Parses the status byte
+     *
+     * @param status the status byte
+     */
+    private void parseStatus(final int status) {
+        final int nextRunningStatus = STATUS_RUNNING_STATUS[status];
+        if (nextRunningStatus != RUNNING_STATUS_KEEP) {
+            runningStatus = nextRunningStatus;
+        }
+
+        midiState = STATUS_NEXT_STATE[status];
+        switch (midiState) {
+            case MIDI_STATE_TIMESTAMP:
+                // 1byte message
+                addEventToQueue(STATUS_EVENT_TYPE[status], status, 0, 0, null);
+                break;
+            case MIDI_STATE_DATA_1:
+                midiEventKind = status;
+                break;
+            case MIDI_STATE_SIGNAL_SYSEX:
+                systemExclusiveLength = 1;
+                systemExclusivePreviousByte = 0;
+                if ((subscribedEventTypes & MidiEventType.SYSTEM_EXCLUSIVE) == 0) {
+                    // not subscribed: ignore the message until 0xF7
+                    isSystemExclusiveAborted = true;
+                    currentSystemExclusiveChunkListener = null;
+                    systemExclusiveRecoveryByte = -1;
+                    break;
+                }
+                isSystemExclusiveAborted = false;
+                currentSystemExclusiveChunkListener = systemExclusiveChunkListener;
+                if (currentSystemExclusiveChunkListener != null) {
+                    currentSystemExclusiveChunkListener.onMidiSystemExclusiveStart(sender);
+                    systemExclusiveChunk[0] = (byte) status;
+                    systemExclusiveChunkLength = 1;
+                    systemExclusivePendingByte = -1;
+                    isSystemExclusiveEndPending = false;
+                } else {
+                    systemExclusiveStream.reset();
+                    systemExclusiveStream.write(status);
+                }
+                systemExclusiveRecoveryByte = -1;
+                break;
+            default:
+                // undefined status: ignored
+                break;
+        }
+    }
+
+    /**
+     * Copies the assembled SysEx message to the array for the listener
+     *
+     * @return the message
+     */
+    @NotNull
+    private byte[] copySystemExclusive() {
+        final int length = systemExclusiveStream.size();
+        final byte[] systemExclusive = isSystemExclusiveBufferRecycling ? systemExclusiveBufferPool.obtain(length) : new byte[length];
+        systemExclusiveStream.copyTo(systemExclusive, 0);
+        return systemExclusive;
+    }
+
+    /**
+     * Returns the SysEx array to the pool, after the listener has been called
+     *
+     * @param systemExclusive the array, may be null
+     */
+    private void recycleSystemExclusive(@Nullable byte[] systemExclusive) {
+        if (systemExclusive != null && isSystemExclusiveBufferRecycling) {
+            systemExclusiveBufferPool.recycle(systemExclusive);
+        }
+    }
+
+    /**
+     * Parses the SysEx byte, to deliver the message incrementally
+     *
+     * @param midiEvent the SysEx byte
+     */
+    private void parseSystemExclusiveChunk(final int midiEvent) {
+        if (midiEvent == 0xf7) {
+            if (systemExclusivePendingByte >= 0 && systemExclusivePendingByte < 0x80) {
+                // the timestamp may be 0xF7, and the pending byte may be the data: wait for the next byte
+                isSystemExclusiveEndPending = true;
+                return;
+            }
+
+            // the end of message, the pending byte is for timestamp
+            if (systemExclusivePendingByte >= 0) {
+                timestamp = calculateTimestamp(systemExclusivePendingByte);
+            }
+            endSystemExclusiveChunk();
+        } else {
+            if (systemExclusivePendingByte >= 0) {
+                appendSystemExclusiveChunk(systemExclusivePendingByte);
+            }
+            systemExclusivePendingByte = midiEvent;
+        }
+    }
+
+    /**
+     * Parses System Real-Time message interleaved in the SysEx message<br />
+     * The timestamp before the message has been parsed as the part of SysEx, it's removed from the SysEx message.
+     *
+     * @param midiEvent the status byte of System Real-Time message
+     */
+    private void parseSystemExclusiveRealTime(final int midiEvent) {
+        if (!isSystemExclusiveAborted) {
+            if (currentSystemExclusiveChunkListener != null) {
+                systemExclusivePendingByte = -1;
+            } else {
+                systemExclusiveStream.removeLastByte();
+            }
+            systemExclusiveLength--;
+        }
+
+        timestamp = calculateTimestamp(systemExclusivePreviousByte);
+        addEventToQueue(STATUS_EVENT_TYPE[midiEvent], midiEvent, 0, 0, null);
+    }
+
+    /**
+     * Settles the 0xF7 after the data byte, with the next byte
+     *
+     * @param midiEvent the next byte, or -1 if the packet has been ended
+     */
+    private void settleSystemExclusiveChunkEnd(final int midiEvent) {
+        isSystemExclusiveEndPending = false;
+        if (midiEvent == 0xf7) {
+            // the previous 0xF7 was the timestamp, and the pending byte is the data
+            appendSystemExclusiveChunk(systemExclusivePendingByte);
+            timestamp = calculateTimestamp(0xf7);
+            endSystemExclusiveChunk();
+            return;
+        }
+
+        // the previous 0xF7 was the end of message, the pending byte is for timestamp
+        timestamp = calculateTimestamp(systemExclusivePendingByte);
+        endSystemExclusiveChunk();
+        if (midiEvent >= 0) {
+            // process the byte with state: MIDI_STATE_TIMESTAMP
+            parseMidiEvent((byte) midiEvent);
+        }
+    }
+
+    /**
+     * Delivers the end of SysEx message to the listener
+     */
+    private void endSystemExclusiveChunk() {
+        appendSystemExclusiveChunk(0xf7);
+        flushSystemExclusiveChunk();
+        currentSystemExclusiveChunkListener.onMidiSystemExclusiveEnd(sender);
+        currentSystemExclusiveChunkListener = null;
+        midiState = MIDI_STATE_TIMESTAMP;
+    }
+
+    /**
+     * Appends the byte to the SysEx chunk, delivers the chunk if it's full
+     *
+     * @param data the SysEx byte
+     */
+    private void appendSystemExclusiveChunk(final int data) {
+        if (systemExclusiveChunkLength == systemExclusiveChunk.length) {
+            flushSystemExclusiveChunk();
+        }
+        systemExclusiveChunk[systemExclusiveChunkLength++] = (byte) data;
+    }
+
+    /**
+     * Appends the bytes to the SysEx chunk, delivers the chunk each time it's full
+     *
+     * @param data the array contains SysEx bytes
+     * @param offset the offset of the bytes
+     * @param length the length of the bytes
+     */
+    private void appendSystemExclusiveChunk(@NotNull byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (systemExclusiveChunkLength == systemExclusiveChunk.length) {
+                flushSystemExclusiveChunk();
+            }
+            final int copyLength = Math.min(length, systemExclusiveChunk.length - systemExclusiveChunkLength);
+            System.arraycopy(data, offset, systemExclusiveChunk, systemExclusiveChunkLength, copyLength);
+            systemExclusiveChunkLength += copyLength;
+            offset += copyLength;
+            length -= copyLength;
+        }
+    }
+
+    /**
+     * Delivers the SysEx chunk to the listener
+     */
+    private void flushSystemExclusiveChunk() {
+        if (currentSystemExclusiveChunkListener != null && systemExclusiveChunkLength > 0) {
+            currentSystemExclusiveChunkListener.onMidiSystemExclusiveChunk(sender, systemExclusiveChunk, 0, systemExclusiveChunkLength);
+        }
+        systemExclusiveChunkLength = 0;
+    }
+
+    /**
+     * Aborts the SysEx message, it exceeded the maximum length
+     */
+    private void abortSystemExclusive() {
+        isSystemExclusiveAborted = true;
+        if (currentSystemExclusiveChunkListener != null) {
+            systemExclusiveChunkLength = 0;
+            currentSystemExclusiveChunkListener.onMidiSystemExclusiveAbort(sender);
+            currentSystemExclusiveChunkListener = null;
+        } else {
+            systemExclusiveStream.reset();
+        }
+    }
+
+    /**
+     * Parses the data byte without status byte
+     *
+     * @param data the data byte
+     */
+    private void parseRunningStatus(final int data) {
+        if (runningStatus == 0) {
+            // no running status: ignored
+            midiState = MIDI_STATE_WAIT;
+            return;
+        }
+
+        midiEventKind = runningStatus;
+        parseFirstData(data);
+    }
+
+    /**
+     * Parses the first data byte of the message
+     *
+     * @param data the data byte
+     */
+    private void parseFirstData(final int data) {
+        if (STATUS_DATA_LENGTH[midiEventKind] == 1) {
+            addEventToQueue(STATUS_EVENT_TYPE[midiEventKind], midiEventKind, data, 0, null);
+            midiState = MIDI_STATE_TIMESTAMP;
+        } else {
+            midiEventNote = data;
+            midiState = MIDI_STATE_DATA_2;
+        }
+    }
+
+    /**
+     * Parses the RPN/NRPN messages, contained in the control change message
+     *
+     * @param status the status byte, includes the channel
+     * @param function the control function
+     * @param value the control value
+     */
+    private void parseRpnNrpn(final int status, final int function, final int value) {
+        final int channel = status & 0xf;
+
+        switch (function) {
+            case 6:
+                // RPN/NRPN value MSB
+                updateRpnNrpnValue(status, channel, 0x3f80, (value & 0x7f) << 7, 0);
+                break;
+            case 38:
+                // RPN/NRPN value LSB
+                updateRpnNrpnValue(status, channel, 0x7f, value & 0x7f, 0);
+                break;
+            case 96:
+                // RPN/NRPN data increment
+                updateRpnNrpnValue(status, channel, 0, 0, 1);
+                break;
+            case 97:
+                // RPN/NRPN data decrement
+                updateRpnNrpnValue(status, channel, 0, 0, -1);
+                break;
+            case 98:
+                // NRPN parameter number LSB
+                nrpnFunctionLsb[channel] = value & 0x7f;
+                rpnStatus[channel] = RPN_STATUS_NRPN;
+                break;
+            case 99:
+                // NRPN parameter number MSB
+                nrpnFunctionMsb[channel] = value & 0x7f;
+                rpnStatus[channel] = RPN_STATUS_NRPN;
+                break;
+            case 100:
+                // RPN parameter number LSB
+                rpnFunctionLsb[channel] = value & 0x7f;
+                updateRpnStatus(channel);
+                break;
+            case 101:
+                // RPN parameter number MSB
+                rpnFunctionMsb[channel] = value & 0x7f;
+                updateRpnStatus(channel);
+                break;
+            default:
+                // do nothing
+                break;
+        }
+    }
+
+    /**
+     * Updates the RPN status of the channel, with the selected RPN parameter number
+     *
+     * @param channel the channel
+     */
+    private void updateRpnStatus(final int channel) {
+        if (rpnFunctionMsb[channel] == 0x7f && rpnFunctionLsb[channel] == 0x7f) {
+            // RPN null
+            rpnStatus[channel] = RPN_STATUS_NONE;
+        } else {
+            rpnStatus[channel] = RPN_STATUS_RPN;
+        }
+    }
+
+    /**
+     * Updates the value of the selected RPN/NRPN parameter, and fires the event
+     *
+     * @param status the status byte, includes the channel
+     * @param channel the channel
+     * @param mask the bits to update, 0x3f80 for MSB, 0x7f for LSB, 0 for the data increment/decrement
+     * @param bits the new bits
+     * @param step the amount added to the value, for the data increment/decrement
+     */
+    private void updateRpnNrpnValue(final int status, final int channel, final int mask, final int bits, final int step) {
+        final short[][] values;
+        final int function;
+        final int eventType;
+        switch (rpnStatus[channel]) {
+            case RPN_STATUS_RPN:
+                values = rpnValues;
+                function = (rpnFunctionMsb[channel] << 7) | rpnFunctionLsb[channel];
+                eventType = MidiEventType.RPN;
+                break;
+            case RPN_STATUS_NRPN:
+                values = nrpnValues;
+                function = (nrpnFunctionMsb[channel] << 7) | nrpnFunctionLsb[channel];
+                eventType = MidiEventType.NRPN;
+                break;
+            default:
+                // no parameter selected
+                return;
+        }
+
+        short[] channelValues = values[channel];
+        if (channelValues == null) {
+            channelValues = new short[RPN_NRPN_FUNCTION_COUNT];
+            values[channel] = channelValues;
+        }
+
+        final int value = Math.max(0, Math.min(0x3fff, ((channelValues[function] & ~mask) | bits) + step));
+        channelValues[function] = (short) value;
+        addEventToQueue(eventType, status, function, value, null);
+    }
+
+    /**
+     * Prepares to parse one packet
+     *
+     * @param header the header byte of the packet
+     */
+    private void onPacketStarted(final int header) {
+        timestampHigh = header & 0x3f;
+        lastTimestampLow = -1;
+    }
+
+    /**
+     * Calculates the 13-bit timestamp with the timestampLow byte, and the timestampHigh of the packet<br />
+     * When the timestampLow is smaller than the previous one in the same packet, the timestampLow has wrapped around, and the timestampHigh is incremented.
+     *
+     * @param timestampLow the timestamp byte
+     * @return the timestamp
+     */
+    private int calculateTimestamp(final int timestampLow) {
+        final int low = timestampLow & 0x7f;
+        if (low < lastTimestampLow) {
+            timestampHigh = (timestampHigh + 1) & 0x3f;
+        }
+        lastTimestampLow = low;
+        return (timestampHigh << 7) | low;
+    }
+
+    /**
+     * Delivers the data collected from one packet
+     */
+    private void onPacketParsed() {
+        if (isSystemExclusiveEndPending) {
+            // 0xF7 was the last byte of the packet, it was the end of message
+            settleSystemExclusiveChunkEnd(-1);
+        }
+
+        // the immediately fired events in the packet
+        immediateEventBatch.flush(midiInputEventBatchListener, sender);
+
+        // the part of SysEx message in the packet
+        if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
+            flushSystemExclusiveChunk();
+        }
+    }
+
+    /**
+     * Updates incoming data
+     *
+     * @param data incoming data
+     */
+    public void parse(@NotNull byte[] data) {
+        parse(data, 0, data.length);
+    }
+
+    /**
+     * Updates incoming data, contained in the part of the array
+     *
+     * @param data the array contains incoming data
+     * @param offset the offset of incoming data in the array
+     * @param length the length of incoming data
+     * @throws IndexOutOfBoundsException if the offset and the length are out of the array
+     */
+    public void parse(@NotNull byte[] data, int offset, int length) {
+        parse(data, offset, length, System.nanoTime());
+    }
+
+    /**
+     * Updates incoming data, contained in the part of the array, received at the specified time<br />
+     * Used to feed the captured packets with {@link BleMidiPacketReplayer}.
+     *
+     * @param data the array contains incoming data
+     * @param offset the offset of incoming data in the array
+     * @param length the length of incoming data
+     * @param arrivalTime the time the data has been received, in {@link System#nanoTime()} base
+     * @throws IndexOutOfBoundsException if the offset and the length are out of the array
+     */
+    public synchronized void parse(@NotNull byte[] data, int offset, int length, long arrivalTime) {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", array length: " + data.length);
+        }
+
+        if (!isTerminated && isRunning) {
+            final BleMidiPacketCaptureWriter captureWriter = packetCaptureWriter;
+            if (captureWriter != null) {
+                captureWriter.write(data, offset, length, arrivalTime);
+            }
+
+            if (length > 1) {
+                this.arrivalTime = arrivalTime;
+                onPacketStarted(data[offset] & 0xff);
+                final int end = offset + length;
+                for (int i = offset + 1; i < end; i++) {
+                    if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
+                        final int systemExclusiveDataLength = parseSystemExclusiveData(data, i, end);
+                        if (systemExclusiveDataLength > 0) {
+                            i += systemExclusiveDataLength - 1;
+                            continue;
+                        }
+                    }
+                    parseMidiEvent(data[i]);
+                }
+
+                onPacketParsed();
+            }
+        }
+    }
+
+    /**
+     * Parses the run of SysEx data bytes at once, until the next byte with the high bit set
+     *
+     * @param data the array contains incoming data
+     * @param offset the offset of the run
+     * @param end the end of incoming data
+     * @return the count of parsed bytes, 0 if the bytes should be parsed one by one
+     */
+    private int parseSystemExclusiveData(@NotNull byte[] data, int offset, int end) {
+        if (isSystemExclusiveEndPending) {
+            // the byte settles the last 0xF7
+            return 0;
+        }
+
+        int limit = end;
+        if (!isSystemExclusiveAborted && systemExclusiveMaxLength - systemExclusiveLength < end - offset) {
+            // the bytes within the maximum length, the next byte aborts the message one by one
+            limit = offset + systemExclusiveMaxLength - systemExclusiveLength;
+        }
+        int dataEnd = offset;
+        while (dataEnd < limit && data[dataEnd] >= 0) {
+            dataEnd++;
+        }
+        final int length = dataEnd - offset;
+        if (length == 0) {
+            return 0;
+        }
+        systemExclusivePreviousByte = data[dataEnd - 1];
+
+        if (isSystemExclusiveAborted) {
+            // ignore the rest of aborted message
+            return length;
+        }
+        systemExclusiveLength += length;
+
+        if (currentSystemExclusiveChunkListener != null) {
+            // the last byte is kept pending, it may be the timestamp before 0xF7
+            if (systemExclusivePendingByte >= 0) {
+                appendSystemExclusiveChunk(systemExclusivePendingByte);
+            }
+            appendSystemExclusiveChunk(data, offset, length - 1);
+            systemExclusivePendingByte = data[dataEnd - 1];
+        } else {
+            systemExclusiveStream.write(data, offset, length);
+        }
+        return length;
+    }
+
+    /**
+     * Updates incoming data, contained from the position to the limit of the buffer.<br />
+     * The position of the buffer is moved to the limit.
+     *
+     * @param data the buffer contains incoming data
+     */
+    public synchronized void parse(@NotNull ByteBuffer data) {
+        final int position = data.position();
+        final int length = data.remaining();
+
+        if (data.hasArray()) {
+            parse(data.array(), data.arrayOffset() + position, length);
+        } else if (!isTerminated && isRunning) {
+            final long arrivalTime = System.nanoTime();
+            final BleMidiPacketCaptureWriter captureWriter = packetCaptureWriter;
+            if (captureWriter != null) {
+                captureWriter.write(data, arrivalTime);
+            }
+
+            if (length > 1) {
+                this.arrivalTime = arrivalTime;
+                onPacketStarted(data.get(position) & 0xff);
+                final int end = position + length;
+                for (int i = position + 1; i < end; i++) {
+                    parseMidiEvent(data.get(i));
+                }
+
+                onPacketParsed();
+            }
+        }
+
+        data.position(position + length);
+    }
+
+    /**
+     * Lock-free ring buffer of the parsed events, from the parsing thread to the dispatching thread<br />
+     * Single producer: {@link #offer(MidiEventWithTiming)} is called only from the parsing thread.<br />
+     * Single consumer: {@link #peek()} and {@link #poll()} are called with the lock of the event queue.
+     */
+    private static final class MidiEventRing {
+        private final MidiEventWithTiming[] events;
+        private final int mask;
+        // the next index to read, written by the consumer
+        private final AtomicLong head = new AtomicLong();
+        // the next index to write, written by the producer
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Constructor
+         *
+         * @param size the count of events, must be a power of two
+         */
+        MidiEventRing(int size) {
+            events = new MidiEventWithTiming[size];
+            mask = size - 1;
+        }
+
+        /**
+         * Adds the event to the ring
+         *
+         * @param event the event
+         * @return false if the ring is full
+         */
+        boolean offer(@NotNull MidiEventWithTiming event) {
+            final long currentTail = tail.get();
+            if (currentTail - head.get() == events.length) {
+                return false;
+            }
+            events[(int) currentTail & mask] = event;
+            // publishes the event after the slot has been written
+            tail.lazySet(currentTail + 1);
+            return true;
+        }
+
+        /**
+         * Obtains the oldest event without removing
+         *
+         * @return the event, or null if the ring is empty
+         */
+        @Nullable
+        MidiEventWithTiming peek() {
+            final long currentHead = head.get();
+            if (currentHead == tail.get()) {
+                return null;
+            }
+            return events[(int) currentHead & mask];
+        }
+
+        /**
+         * Removes the oldest event, obtained with {@link #peek()}
+         */
+        void poll() {
+            final long currentHead = head.get();
+            events[(int) currentHead & mask] = null;
+            // releases the slot after it has been cleared
+            head.lazySet(currentHead + 1);
+        }
+    }
+
+    /**
+     * Binary min-heap of the queued events<br />
+     * Ordered by the sort key: the firing timing, then the priority, then the arrival order.
+     */
+    private static final class MidiEventQueue {
+        private MidiEventWithTiming[] heap = new MidiEventWithTiming[64];
+        private int size = 0;
+
+        /**
+         * Checks the queue is empty
+         *
+         * @return true if no events are queued
+         */
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Obtains the count of queued events
+         *
+         * @return the count of events
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Obtains the first event without removing it
+         *
+         * @return the first event, or null if the queue is empty
+         */
+        @Nullable
+        MidiEventWithTiming peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        /**
+         * Adds an event
+         *
+         * @param event the event
+         */
+        void offer(@NotNull MidiEventWithTiming event) {
+            if (size == heap.length) {
+                final MidiEventWithTiming[] newHeap = new MidiEventWithTiming[size * 2];
+                System.arraycopy(heap, 0, newHeap, 0, size);
+                heap = newHeap;
+            }
+
+            event.isQueued = true;
+
+            // sift up
+            int index = size++;
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                final MidiEventWithTiming parentEvent = heap[parent];
+                if (!isBefore(event, parentEvent)) {
+                    break;
+                }
+                heap[index] = parentEvent;
+                index = parent;
+            }
+            heap[index] = event;
+        }
+
+        /**
+         * Removes the first event
+         *
+         * @return the first event, or null if the queue is empty
+         */
+        @Nullable
+        MidiEventWithTiming poll() {
+            if (size == 0) {
+                return null;
+            }
+
+            final MidiEventWithTiming result = heap[0];
+            result.isQueued = false;
+            final MidiEventWithTiming last = heap[--size];
+            heap[size] = null;
+
+            if (size > 0) {
+                // sift down
+                int index = 0;
+                final int half = size >>> 1;
+                while (index < half) {
+                    int child = (index << 1) + 1;
+                    final int right = child + 1;
+                    if (right < size && isBefore(heap[right], heap[child])) {
+                        child = right;
+                    }
+                    if (!isBefore(heap[child], last)) {
+                        break;
+                    }
+                    heap[index] = heap[child];
+                    index = child;
+                }
+                heap[index] = last;
+            }
+
+            return result;
+        }
+
+        /**
+         * Compares the firing order of events
+         *
+         * @param lhs the event
+         * @param rhs the event to compare
+         * @return true if lhs fires before rhs
+         */
+        private static boolean isBefore(@NotNull MidiEventWithTiming lhs, @NotNull MidiEventWithTiming rhs) {
+            return lhs.sortKey < rhs.sortKey || (lhs.sortKey == rhs.sortKey && lhs.sequence < rhs.sequence);
+        }
+    }
+
+    private final MidiEventQueue queuedEventList = new MidiEventQueue();
+    // the events from the parsing thread, moved to queuedEventList by the dispatching thread
+    private static final int INGRESS_RING_SIZE = 1024;
+    private final MidiEventRing ingressRing = new MidiEventRing(INGRESS_RING_SIZE);
+    private long eventSequence = 0;
+
+    // for the sort key
+    private static final int SORT_KEY_PRIORITY_BITS = 3;
+    private final long sortKeyTimeBase = System.nanoTime();
+
+    /**
+     * Add a event to event queue, with the current timestamp
+     *
+     * @param kind the event kind, one of {@link MidiEventType}
+     * @param status the MIDI status byte
+     * @param data1 the first data
+     * @param data2 the second data
+     * @param array the SysEx data, or null
+     */
+    private void addEventToQueue(int kind, int status, int data1, int data2, @Nullable byte[] array) {
+        if ((kind & subscribedEventTypes) == 0) {
+            // not subscribed
+            recycleSystemExclusive(array);
+            return;
+        }
+
+        if ((kind & immediateDispatchEventTypes) != 0) {
+            // keep measuring the timing, and fire the event without queueing
+            immediateEvent.kind = kind;
+            immediateEvent.status = status;
+            immediateEvent.data1 = data1;
+            immediateEvent.data2 = data2;
+            immediateEvent.array = array;
+            setEventTiming(immediateEvent);
+            fireEvent(immediateEvent);
+            if (midiInputEventBatchListener != null) {
+                immediateEventBatch.add(immediateEvent);
+            }
+            recycleSystemExclusive(immediateEvent.array);
+            immediateEvent.array = null;
+            return;
+        }
+
+        final MidiEventWithTiming event = obtainEvent();
+        event.kind = kind;
+        event.status = status;
+        event.data1 = data1;
+        event.data2 = data2;
+        event.array = array;
+        setEventTiming(event);
+        event.sequence = eventSequence++;
+        event.sortKey = calculateEventSortKey(event.timing, status);
+
+        if (!ingressRing.offer(event)) {
+            // the dispatcher is behind: moves the events to the queue on this thread
+            synchronized (queuedEventList) {
+                transferIngressEvents(true);
+            }
+            // the ring is empty now, and only this thread adds the events
+            ingressRing.offer(event);
+        }
+
+        if (!isManualDispatch && !isDrainPosted.get()) {
+            // wake up the dispatcher, if the event fires before the current sleeping deadline
+            eventDispatcher.wakeUp(event.timing);
+        }
+    }
+
+    /**
+     * Moves the events from the ingress ring to the event queue, called with the queue's lock
+     *
+     * @param canBlock true if called from the parsing thread, and the thread can wait with {@link MidiEventQueueOverflowPolicy#BLOCK}
+     */
+    private void transferIngressEvents(boolean canBlock) {
+        MidiEventWithTiming event;
+        while ((event = ingressRing.peek()) != null) {
+            if (queuedEventList.size() >= eventQueueCapacity && eventQueueOverflowPolicy == MidiEventQueueOverflowPolicy.BLOCK) {
+                if (!canBlock) {
+                    // keeps the events in the ring, until the queue has space
+                    return;
+                }
+                if (waitForEventQueueSpace()) {
+                    // the oldest event in the ring is taken after waiting, the newer events never pass it
+                    continue;
+                }
+            }
+            ingressRing.poll();
+            enqueueEvent(event);
+        }
+    }
+
+    /**
+     * Waits until the event queue has space with {@link MidiEventQueueOverflowPolicy#BLOCK}, called from the parsing thread with the queue's lock
+     *
+     * @return true if the queue has space, false if the parser has been stopped, the policy has been changed, or the thread has been interrupted
+     */
+    private boolean waitForEventQueueSpace() {
+        isIngressBlocked = true;
+        try {
+            while (queuedEventList.size() >= eventQueueCapacity && isRunning && eventQueueOverflowPolicy == MidiEventQueueOverflowPolicy.BLOCK) {
+                queuedEventList.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            isIngressBlocked = false;
+        }
+        return queuedEventList.size() < eventQueueCapacity;
+    }
+
+    /**
+     * Adds the event to the event queue with the overflow policy, called with the queue's lock
+     *
+     * @param event the event
+     */
+    private void enqueueEvent(@NotNull MidiEventWithTiming event) {
+        MidiEventWithTiming droppedEvent = null;
+        if (queuedEventList.size() >= eventQueueCapacity) {
+            droppedEvent = handleEventQueueOverflow(event);
+        }
+        if (droppedEvent != event) {
+            queuedEventList.offer(event);
+            if (eventQueueOverflowPolicy == MidiEventQueueOverflowPolicy.COALESCE) {
+                if (isCoalescible(event, COALESCIBLE_EVENT_TYPES)) {
+                    coalescibleEventIndex.put(calculateCoalescingKey(event), event);
+                } else if ((event.kind & MidiEventType.NOTES) != 0) {
+                    lastQueuedNoteSequence = event.sequence;
+                }
+            }
+        }
+        if (droppedEvent != null) {
+            recycleEvent(droppedEvent);
+        }
+    }
+
+    /**
+     * Makes the space of the full event queue with the overflow policy, called with the queue's lock
+     *
+     * @param event the new event
+     * @return the event to be dropped, the new event if it should not be queued
+     */
+    @Nullable
+    private MidiEventWithTiming handleEventQueueOverflow(@NotNull MidiEventWithTiming event) {
+        eventQueueOverflowCount++;
+
+        switch (eventQueueOverflowPolicy) {
+            case MidiEventQueueOverflowPolicy.DROP_NEWEST:
+                droppedEventCount++;
+                return event;
+
+            case MidiEventQueueOverflowPolicy.COALESCE:
+                if (isCoalescible(event, COALESCIBLE_EVENT_TYPES)) {
+                    final MidiEventWithTiming queued = coalescibleEventIndex.get(calculateCoalescingKey(event));
+                    if (queued != null && queued.sequence > lastQueuedNoteSequence) {
+                        // the timing and the order are kept, only the value is updated
+                        // no notes are queued after the event, so the newer value isn't moved before any notes
+                        queued.data1 = event.data1;
+                        queued.data2 = event.data2;
+                        droppedEventCount++;
+                        return event;
+                    }
+                }
+                break;
+
+            case MidiEventQueueOverflowPolicy.BLOCK:
+                // the queue is still full after waiting: stopped, or interrupted
+                droppedEventCount++;
+                return event;
+
+            default:
+                break;
+        }
+
+        // DROP_OLDEST
+        droppedEventCount++;
+        return queuedEventList.poll();
+    }
+
+    /**
+     * Fires the events reached to their timing, called from {@link BleMidiEventDispatcher}
+     *
+     * @param currentTime the current time, in {@link System#nanoTime()} base
+     * @param maxEventCount the maximum count of events to fire
+     * @return the count of fired events, 0 if the events are fired on the other thread
+     */
+    int dispatchEvents(final long currentTime, final int maxEventCount) {
+        if (isManualDispatch) {
+            return 0;
+        }
+
+        final Executor executor = dispatchExecutor;
+        if (executor == null) {
+            return fireDueEvents(currentTime, maxEventCount);
+        }
+
+        final boolean hasDueEvent;
+        synchronized (queuedEventList) {
+            transferIngressEvents(false);
+            final MidiEventWithTiming event = queuedEventList.peek();
+            hasDueEvent = event != null && event.timing <= currentTime;
+        }
+        if (hasDueEvent && isDrainPosted.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainRunnable);
+            } catch (RejectedExecutionException e) {
+                // the executor has been shut down, fire on this thread
+                isDrainPosted.set(false);
+                return fireDueEvents(currentTime, maxEventCount);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Fires the events reached to their timing, on the calling thread
+     *
+     * @param currentTime the current time, in {@link System#nanoTime()} base
+     * @param maxEventCount the maximum count of events to fire
+     * @return the count of fired events
+     */
+    private int fireDueEvents(final long currentTime, final int maxEventCount) {
+        synchronized (dispatchLock) {
+            final int coalescedTypes = coalescedEventTypes;
+            if (coalescedTypes != MidiEventType.NONE) {
+                return dispatchCoalescedEvents(currentTime, maxEventCount, coalescedTypes);
+            }
+            return dispatchQueuedEvents(currentTime, maxEventCount);
+        }
+    }
+
+    /**
+     * Fires the events reached to their timing
+     *
+     * @param currentTime the current time, in {@link System#nanoTime()} base
+     * @param maxEventCount the maximum count of events to fire
+     * @return the count of fired events
+     */
+    private int dispatchQueuedEvents(final long currentTime, final int maxEventCount) {
+        int eventCount = 0;
+        while (isRunning && eventCount < maxEventCount) {
+            final MidiEventWithTiming event;
+            synchronized (queuedEventList) {
+                transferIngressEvents(false);
+                event = queuedEventList.peek();
+                if (event == null || event.timing > currentTime) {
+                    break;
+                }
+                queuedEventList.poll();
+                if (isIngressBlocked) {
+                    queuedEventList.notifyAll();
+                }
+            }
+
+            fireQueuedEvent(event);
+            eventCount++;
+        }
+
+        dispatchedEventBatch.flush(midiInputEventBatchListener, sender);
+        return eventCount;
+    }
+
+    /**
+     * Fires the events reached to their timing, only the latest event of the same channel and the same controller/note is fired
+     *
+     * @param currentTime the current time, in {@link System#nanoTime()} base
+     * @param maxEventCount the maximum count of events to dequeue
+     * @param coalescedTypes the event types to coalesce
+     * @return the count of dequeued events
+     */
+    private int dispatchCoalescedEvents(final long currentTime, final int maxEventCount, final int coalescedTypes) {
+        // dequeue the events reached to their timing
+        int eventCount = 0;
+        synchronized (queuedEventList) {
+            while (isRunning && eventCount < maxEventCount) {
+                transferIngressEvents(false);
+                final MidiEventWithTiming event = queuedEventList.peek();
+                if (event == null || event.timing > currentTime) {
+                    break;
+                }
+                queuedEventList.poll();
+
+                if (eventCount == dispatchingEvents.length) {
+                    final MidiEventWithTiming[] newEvents = new MidiEventWithTiming[eventCount * 2];
+                    System.arraycopy(dispatchingEvents, 0, newEvents, 0, eventCount);
+                    dispatchingEvents = newEvents;
+                }
+                dispatchingEvents[eventCount++] = event;
+            }
+            if (eventCount > 0 && isIngressBlocked) {
+                queuedEventList.notifyAll();
+            }
+        }
+
+        if (eventCount == 0) {
+            return 0;
+        }
+
+        // remove the events overwritten with the later event, the others keep their order
+        coalescingIndex.clear(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            final MidiEventWithTiming event = dispatchingEvents[i];
+            if ((event.kind & MidiEventType.NOTES) != 0) {
+                // the controller values before the note are applied to the note, the later value isn't moved before it
+                coalescingIndex.clear();
+                continue;
+            }
+            if (!isCoalescible(event, coalescedTypes)) {
+                continue;
+            }
+
+            final int previous = coalescingIndex.put(calculateCoalescingKey(event), i);
+            if (previous >= 0) {
+                recycleEvent(dispatchingEvents[previous]);
+                dispatchingEvents[previous] = null;
+            }
+        }
+
+        for (int i = 0; i < eventCount; i++) {
+            final MidiEventWithTiming event = dispatchingEvents[i];
+            if (event != null) {
+                dispatchingEvents[i] = null;
+                fireQueuedEvent(event);
+            }
+        }
+
+        dispatchedEventBatch.flush(midiInputEventBatchListener, sender);
+        return eventCount;
+    }
+
+    /**
+     * Fires the dequeued event, and recycles it
+     *
+     * @param event the event
+     */
+    private void fireQueuedEvent(@NotNull MidiEventWithTiming event) {
+        final long latenessNanos = System.nanoTime() - event.timing;
+        lastEventLatenessNanos = latenessNanos;
+        if (latenessNanos > maxEventLatenessNanos) {
+            maxEventLatenessNanos = latenessNanos;
+        }
+
+        fireEvent(event);
+        if (midiInputEventBatchListener != null) {
+            dispatchedEventBatch.add(event);
+        }
+        recycleEvent(event);
+    }
+
+    /**
+     * Checks the event can be overwritten with the later event of the same key
+     *
+     * @param event the event
+     * @param coalescibleTypes the event types to coalesce
+     * @return true if the event is one of the types, and not the control change never coalesced
+     */
+    private static boolean isCoalescible(@NotNull MidiEventWithTiming event, int coalescibleTypes) {
+        if ((event.kind & coalescibleTypes) == 0) {
+            return false;
+        }
+        if (event.kind != MidiEventType.CONTROL_CHANGE) {
+            return true;
+        }
+        final long nonCoalescibleFunctions = event.data1 < 64 ? NON_COALESCIBLE_CONTROL_FUNCTIONS_0_63 : NON_COALESCIBLE_CONTROL_FUNCTIONS_64_127;
+        return (nonCoalescibleFunctions >>> (event.data1 & 0x3f) & 1L) == 0;
+    }
+
+    /**
+     * Calculates the key of the coalescible event: the event kind, the status byte, and the controller/note
+     *
+     * @param event the event
+     * @return the key, 0 or positive
+     */
+    private static int calculateCoalescingKey(@NotNull MidiEventWithTiming event) {
+        final int data1 = (event.kind & PARAMETER_EVENT_TYPES) != 0 ? event.data1 : 0;
+        return (Integer.numberOfTrailingZeros(event.kind) << 22) | (event.status << 14) | (data1 & 0x3fff);
+    }
+
+    /**
+     * Open addressing hash table, maps the coalescing key to the latest queued event with the key<br />
+     * The fired, or dropped events are not removed, they are detected with {@link MidiEventWithTiming#isQueued} and the sequence.
+     */
+    private static final class CoalescibleEventIndex {
+        private int[] keys = new int[64];
+        private MidiEventWithTiming[] events = new MidiEventWithTiming[64];
+        private long[] sequences = new long[64];
+        private int size = 0;
+
+        CoalescibleEventIndex() {
+            Arrays.fill(keys, -1);
+        }
+
+        /**
+         * Obtains the latest event with the key, still in the event queue
+         *
+         * @param key the coalescing key
+         * @return the event, or null if not queued
+         */
+        @Nullable
+        MidiEventWithTiming get(int key) {
+            final int mask = keys.length - 1;
+            int index = (key * 0x9e3779b9) >>> 16 & mask;
+            while (keys[index] >= 0) {
+                if (keys[index] == key) {
+                    final MidiEventWithTiming event = events[index];
+                    return event.isQueued && event.sequence == sequences[index] ? event : null;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Puts the event as the latest event with the key
+         *
+         * @param key the coalescing key, 0 or positive
+         * @param event the queued event
+         */
+        void put(int key, @NotNull MidiEventWithTiming event) {
+            if ((size + 1) * 2 > keys.length) {
+                rebuild();
+            }
+
+            final int mask = keys.length - 1;
+            int index = (key * 0x9e3779b9) >>> 16 & mask;
+            while (keys[index] >= 0 && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            if (keys[index] < 0) {
+                keys[index] = key;
+                size++;
+            }
+            events[index] = event;
+            sequences[index] = event.sequence;
+        }
+
+        /**
+         * Removes all the events
+         */
+        void clear() {
+            Arrays.fill(keys, -1);
+            Arrays.fill(events, null);
+            size = 0;
+        }
+
+        /**
+         * Removes the events not queued any more, and grows the table if it's still crowded
+         */
+        private void rebuild() {
+            final int[] oldKeys = keys;
+            final MidiEventWithTiming[] oldEvents = events;
+            final long[] oldSequences = sequences;
+
+            int queuedCount = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] >= 0 && oldEvents[i].isQueued && oldEvents[i].sequence == oldSequences[i]) {
+                    queuedCount++;
+                }
+            }
+            final int length = queuedCount * 4 > oldKeys.length ? oldKeys.length * 2 : oldKeys.length;
+            keys = new int[length];
+            events = new MidiEventWithTiming[length];
+            sequences = new long[length];
+            Arrays.fill(keys, -1);
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] >= 0 && oldEvents[i].isQueued && oldEvents[i].sequence == oldSequences[i]) {
+                    put(oldKeys[i], oldEvents[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open addressing hash table, maps the coalescing key to the position of the event in one dispatch
+     */
+    private static final class CoalescingIndex {
+        private int[] keys = new int[128];
+        private int[] positions = new int[128];
+        // the key is valid only if its generation is the current generation, so clearing costs nothing
+        private int[] generations = new int[128];
+        private int generation = 0;
+
+        /**
+         * Removes all the keys, and prepares the space for the events
+         *
+         * @param eventCount the count of events to put
+         */
+        void clear(int eventCount) {
+            if (eventCount * 2 > keys.length) {
+                final int length = Integer.highestOneBit(eventCount * 2 - 1) << 1;
+                keys = new int[length];
+                positions = new int[length];
+                generations = new int[length];
+                generation = 0;
+            }
+            clear();
+        }
+
+        /**
+         * Removes all the keys
+         */
+        void clear() {
+            generation++;
+            if (generation == 0) {
+                // wrapped around: the old generations can match again
+                Arrays.fill(generations, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * Puts the position of the event
+         *
+         * @param key the coalescing key, 0 or positive
+         * @param position the position of the event
+         * @return the previous position with the key, or -1 if the key is new
+         */
+        int put(int key, int position) {
+            final int mask = keys.length - 1;
+            int index = (key * 0x9e3779b9) >>> 16 & mask;
+            while (generations[index] == generation) {
+                if (keys[index] == key) {
+                    final int previous = positions[index];
+                    positions[index] = position;
+                    return previous;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            positions[index] = position;
+            generations[index] = generation;
+            return -1;
+        }
+    }
+
+    /**
+     * Obtains the timing of the next event, called from {@link BleMidiEventDispatcher}
+     *
+     * @return the timing in {@link System#nanoTime()} base, or Long.MAX_VALUE if there are no events to fire
+     */
+    long getNextEventTiming() {
+        if (!isRunning || isManualDispatch || (dispatchExecutor != null && isDrainPosted.get())) {
+            // the events are fired on the other thread
+            return Long.MAX_VALUE;
+        }
+        synchronized (queuedEventList) {
+            transferIngressEvents(false);
+            final MidiEventWithTiming event = queuedEventList.peek();
+            return event == null ? Long.MAX_VALUE : event.timing;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * The policies when the MIDI event queue of the device is full.
+ *
+ * @author K.Shoji
+ */
+public interface MidiEventQueueOverflowPolicy {
+    /**
+     * Drops the queued event fires first, and queues the new event
+     */
+    int DROP_OLDEST = 0;
+
+    /**
+     * Drops the new event
+     */
+    int DROP_NEWEST = 1;
+
+    /**
+     * Overwrites the value of the latest queued continuous controller event (control change, aftertouch, pitch wheel, RPN/NRPN) with the new event.<br />
+     * The event isn't overwritten if any note events have been queued after it, the new value never moves before the notes.<br />
+     * The other events are handled with {@link #DROP_OLDEST}.
+     */
+    int COALESCE = 2;
+
+    /**
+     * Blocks the receiving thread until the queue has space.<br />
+     * The parsed events are held in the ingress buffer of 1024 events first, the receiving thread blocks when the buffer is also full.<br />
+     * While blocking, the BLE packets from the device are not received.
+     */
+    int BLOCK = 3;
+}
@@ -0,0 +1,52 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * MIDI event types, used as bit flags to select the events.
+ *
+ * @author K.Shoji
+ */
+public interface MidiEventType {
+    int SYSTEM_EXCLUSIVE = 1;
+    int NOTE_OFF = 1 << 1;
+    int NOTE_ON = 1 << 2;
+    int POLYPHONIC_AFTERTOUCH = 1 << 3;
+    int CONTROL_CHANGE = 1 << 4;
+    int PROGRAM_CHANGE = 1 << 5;
+    int CHANNEL_AFTERTOUCH = 1 << 6;
+    int PITCH_WHEEL = 1 << 7;
+    int TIME_CODE_QUARTER_FRAME = 1 << 8;
+    int SONG_SELECT = 1 << 9;
+    int SONG_POSITION_POINTER = 1 << 10;
+    int TUNE_REQUEST = 1 << 11;
+    int TIMING_CLOCK = 1 << 12;
+    int START = 1 << 13;
+    int CONTINUE = 1 << 14;
+    int STOP = 1 << 15;
+    int ACTIVE_SENSING = 1 << 16;
+    int RESET = 1 << 17;
+    int RPN = 1 << 18;
+    int NRPN = 1 << 19;
+
+    /**
+     * Note on, and note off
+     */
+    int NOTES = NOTE_OFF | NOTE_ON;
+
+    /**
+     * Channel voice messages, except notes
+     */
+    int CHANNEL_CONTROLS = POLYPHONIC_AFTERTOUCH | CONTROL_CHANGE | PROGRAM_CHANGE | CHANNEL_AFTERTOUCH | PITCH_WHEEL | RPN | NRPN;
+
+    /**
+     * System common messages
+     */
+    int SYSTEM_COMMON = SYSTEM_EXCLUSIVE | TIME_CODE_QUARTER_FRAME | SONG_SELECT | SONG_POSITION_POINTER | TUNE_REQUEST;
+
+    /**
+     * System real time messages: clock, and transport
+     */
+    int SYSTEM_REAL_TIME = TIMING_CLOCK | START | CONTINUE | STOP | ACTIVE_SENSING | RESET;
+
+    int NONE = 0;
+    int ALL = NOTES | CHANNEL_CONTROLS | SYSTEM_COMMON | SYSTEM_REAL_TIME;
+}
@@ -0,0 +1,126 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiInputMessageListener;
+
+/**
+ * Adapter from {@link OnMidiInputMessageListener} to {@link OnMidiInputEventListener}<br />
+ * Decodes the packed message, and calls the method of the message type.
+ *
+ * @author K.Shoji
+ */
+public final class MidiInputEventListenerAdapter implements OnMidiInputMessageListener {
+    private final OnMidiInputEventListener midiInputEventListener;
+
+    /**
+     * Constructor
+     *
+     * @param midiInputEventListener the listener to call
+     */
+    public MidiInputEventListenerAdapter(@NotNull OnMidiInputEventListener midiInputEventListener) {
+        this.midiInputEventListener = midiInputEventListener;
+    }
+
+    /**
+     * Obtains the listener to call
+     *
+     * @return the listener
+     */
+    @NotNull
+    public OnMidiInputEventListener getMidiInputEventListener() {
+        return midiInputEventListener;
+    }
+
+    @Override
+    public void onMidiInputMessage(@NotNull MidiInputDevice sender, int message, long timestamp, long senderTime, long arrivalTime) {
+        final int status = PackedMidiMessage.getStatus(message);
+        final int data1 = PackedMidiMessage.getData1(message);
+        final int data2 = PackedMidiMessage.getData2(message);
+
+        switch (status & 0xf0) {
+            case 0x80:
+                midiInputEventListener.onMidiNoteOff(sender, status & 0xf, data1, data2);
+                break;
+            case 0x90:
+                if (data2 == 0) {
+                    midiInputEventListener.onMidiNoteOff(sender, status & 0xf, data1, data2);
+                } else {
+                    midiInputEventListener.onMidiNoteOn(sender, status & 0xf, data1, data2);
+                }
+                break;
+            case 0xa0:
+                midiInputEventListener.onMidiPolyphonicAftertouch(sender, status & 0xf, data1, data2);
+                break;
+            case 0xb0:
+                midiInputEventListener.onMidiControlChange(sender, status & 0xf, data1, data2);
+                break;
+            case 0xc0:
+                midiInputEventListener.onMidiProgramChange(sender, status & 0xf, data1);
+                break;
+            case 0xd0:
+                midiInputEventListener.onMidiChannelAftertouch(sender, status & 0xf, data1);
+                break;
+            case 0xe0:
+                midiInputEventListener.onMidiPitchWheel(sender, status & 0xf, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            case 0xf0:
+                onSystemMessage(sender, status, data1, data2);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Calls the method of the system common, or the system realtime message
+     *
+     * @param sender the device sent this message
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     */
+    private void onSystemMessage(@NotNull MidiInputDevice sender, int status, int data1, int data2) {
+        switch (status) {
+            case 0xf1:
+                midiInputEventListener.onMidiTimeCodeQuarterFrame(sender, data1);
+                break;
+            case 0xf2:
+                midiInputEventListener.onMidiSongPositionPointer(sender, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            case 0xf3:
+                midiInputEventListener.onMidiSongSelect(sender, data1);
+                break;
+            case 0xf6:
+                midiInputEventListener.onMidiTuneRequest(sender);
+                break;
+            case 0xf8:
+                midiInputEventListener.onMidiTimingClock(sender);
+                break;
+            case 0xfa:
+                midiInputEventListener.onMidiStart(sender);
+                break;
+            case 0xfb:
+                midiInputEventListener.onMidiContinue(sender);
+                break;
+            case 0xfc:
+                midiInputEventListener.onMidiStop(sender);
+                break;
+            case 0xfe:
+                midiInputEventListener.onMidiActiveSensing(sender);
+                break;
+            case 0xff:
+                midiInputEventListener.onMidiReset(sender);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onMidiInputSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive, long timestamp, long senderTime, long arrivalTime) {
+        midiInputEventListener.onMidiSystemExclusive(sender, systemExclusive);
+    }
+}
@@ -0,0 +1,70 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Utilities for the MIDI message packed into one int<br />
+ * The layout is: the length of the message (bits 24-25), the status byte (bits 16-23), the first data byte (bits 8-15), and the second data byte (bits 0-7).<br />
+ * The data bytes not used with the message are 0.
+ *
+ * @author K.Shoji
+ */
+public final class PackedMidiMessage {
+
+    /**
+     * Utility class, can't create instance
+     */
+    private PackedMidiMessage() {
+    }
+
+    /**
+     * Packs the MIDI message into one int
+     *
+     * @param status the status byte, includes the channel
+     * @param data1 the first data byte, 0 if the message has no data
+     * @param data2 the second data byte, 0 if the message has less than 2 data
+     * @param length the length of the message in bytes, 1 to 3
+     * @return the packed message
+     */
+    public static int pack(int status, int data1, int data2, int length) {
+        return ((length & 0x3) << 24) | ((status & 0xff) << 16) | ((data1 & 0xff) << 8) | (data2 & 0xff);
+    }
+
+    /**
+     * Obtains the status byte of the packed message
+     *
+     * @param message the packed message
+     * @return the status byte, includes the channel
+     */
+    public static int getStatus(int message) {
+        return (message >> 16) & 0xff;
+    }
+
+    /**
+     * Obtains the first data byte of the packed message
+     *
+     * @param message the packed message
+     * @return the first data byte
+     */
+    public static int getData1(int message) {
+        return (message >> 8) & 0xff;
+    }
+
+    /**
+     * Obtains the second data byte of the packed message
+     *
+     * @param message the packed message
+     * @return the second data byte
+     */
+    public static int getData2(int message) {
+        return message & 0xff;
+    }
+
+    /**
+     * Obtains the length of the packed message
+     *
+     * @param message the packed message
+     * @return the length in bytes, 1 to 3
+     */
+    public static int getLength(int message) {
+        return (message >> 24) & 0x3;
+    }
+}
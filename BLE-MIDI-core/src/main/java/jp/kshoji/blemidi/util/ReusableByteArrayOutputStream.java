@@ -3,12 +3,14 @@ package jp.kshoji.blemidi.util;
 import java.io.ByteArrayOutputStream;
 
 /**
- * {@link java.io.ByteArrayOutputStream} that can reset without memory leak.
+ * {@link java.io.ByteArrayOutputStream} that can reset without memory leak.<br />
+ * The grown buffer is kept for the next use, unless it's larger than the retention limit.
  * 
  * @author K.Shoji
  */
 public final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
 	private static final int DEFAULT_BUFFER_LIMIT = 1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
 	private final byte[] fixedSizeBuffer;
 
 	/**
@@ -40,7 +42,30 @@ public final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
     }
 
     /**
-	 * Construct default instance, maximum buffer size is 1024 bytes.
+     * Removes last written byte
+     *
+     * @return removed value; -1 if {@link #size()} == 0
+     */
+    public synchronized int removeLastByte() {
+        if (count > 0) {
+            count--;
+            return buf[count] & 0xff;
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the written bytes to the array
+     *
+     * @param destination the array, must have {@link #size()} bytes from the offset
+     * @param offset the offset in the array
+     */
+    public synchronized void copyTo(byte[] destination, int offset) {
+        System.arraycopy(buf, 0, destination, offset, count);
+    }
+
+    /**
+	 * Construct default instance, initial buffer size is 1024 bytes.
 	 */
 	public ReusableByteArrayOutputStream() {
 		this(DEFAULT_BUFFER_LIMIT);
@@ -50,8 +75,8 @@ public final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
 	public synchronized void reset() {
 		super.reset();
 		
-		// reset buffer size when the buffer has been extended
-		if (this.buf.length > fixedSizeBuffer.length) {
+		// reset buffer size when the buffer has been extended too large
+		if (this.buf.length > MAX_RETAINED_BUFFER_SIZE) {
 			this.buf = fixedSizeBuffer;
 		}
 	}
@@ -0,0 +1,64 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BleMidiClockEstimatorTest {
+    private static final long MILLIS = 1000000L;
+    private static final long OFFSET = 123456 * MILLIS;
+
+    /**
+     * Adds the samples sent every 10 milliseconds, the local clock runs faster with the drift, and the arrivals are delayed (index % 5) milliseconds
+     *
+     * @param clockEstimator the clock estimator
+     * @param start the sender's time of the first sample
+     * @param durationMillis the sender's time span of the samples
+     * @param driftPpm the drift of the local clock
+     */
+    private static void addSamples(BleMidiClockEstimator clockEstimator, long start, long durationMillis, double driftPpm) {
+        for (int i = 0; i <= durationMillis / 10; i++) {
+            final long senderTime = start + i * 10 * MILLIS;
+            clockEstimator.addSample(senderTime, toLocalTime(senderTime, driftPpm) + (i % 5) * MILLIS);
+        }
+    }
+
+    private static long toLocalTime(long senderTime, double driftPpm) {
+        return OFFSET + senderTime + (long) (senderTime * driftPpm / 1000000.0);
+    }
+
+    @Test
+    public void drift() {
+        final BleMidiClockEstimator clockEstimator = new BleMidiClockEstimator();
+
+        // the drift isn't estimated with the short span
+        addSamples(clockEstimator, 0, 2000, 200.0);
+        assertEquals(0.0, clockEstimator.getDriftPpm(), 0.0);
+
+        // the fastest arrivals are on the line, the jitter doesn't affect the estimation
+        addSamples(clockEstimator, 2010 * MILLIS, 18000, 200.0);
+        assertEquals(200.0, clockEstimator.getDriftPpm(), 1.0);
+        final long senderTime = 21000 * MILLIS;
+        assertEquals(toLocalTime(senderTime, 200.0), clockEstimator.toLocalTime(senderTime), 100000.0);
+    }
+
+    @Test
+    public void maxDrift() {
+        final BleMidiClockEstimator clockEstimator = new BleMidiClockEstimator();
+        addSamples(clockEstimator, 0, 20000, 5000.0);
+        assertEquals(1000.0, clockEstimator.getDriftPpm(), 0.001);
+    }
+
+    @Test
+    public void reset() {
+        final BleMidiClockEstimator clockEstimator = new BleMidiClockEstimator();
+        addSamples(clockEstimator, 0, 20000, 200.0);
+        clockEstimator.reset();
+
+        // the drift is kept, the mapping starts from the next sample
+        assertEquals(200.0, clockEstimator.getDriftPpm(), 1.0);
+        clockEstimator.addSample(0, 5000 * MILLIS);
+        assertEquals(5000 * MILLIS, clockEstimator.toLocalTime(0));
+        assertEquals(5000 * MILLIS + 1000 * MILLIS + 200000L, clockEstimator.toLocalTime(1000 * MILLIS), 1000.0);
+    }
+}
@@ -0,0 +1,78 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BleMidiJitterBufferTest {
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * Adds the samples sent every 10 milliseconds, the transit is 10 milliseconds plus the jitter of (index % 10) milliseconds
+     *
+     * @param jitterBuffer the jitter buffer
+     * @param count the count of samples
+     * @return the playout time of the last sample
+     */
+    private static long addSamples(BleMidiJitterBuffer jitterBuffer, int count) {
+        long playoutTime = 0;
+        for (int i = 0; i < count; i++) {
+            final long senderTime = i * 10 * MILLIS;
+            playoutTime = jitterBuffer.calculatePlayoutTime(senderTime, senderTime + 10 * MILLIS + (i % 10) * MILLIS);
+        }
+        return playoutTime;
+    }
+
+    @Test
+    public void defaultDelay() {
+        final BleMidiJitterBuffer jitterBuffer = new BleMidiJitterBuffer();
+        assertEquals(50 * MILLIS, jitterBuffer.getDelayNanos());
+
+        // before the first update: the fastest transit plus the default delay
+        assertEquals(1000 * MILLIS + 10 * MILLIS + 50 * MILLIS, jitterBuffer.calculatePlayoutTime(1000 * MILLIS, 1010 * MILLIS));
+    }
+
+    @Test
+    public void delayConvergence() {
+        final BleMidiJitterBuffer jitterBuffer = new BleMidiJitterBuffer();
+        final long playoutTime = addSamples(jitterBuffer, 256);
+
+        // the 99th percentile of the jitter is 9 milliseconds, plus the margin of 2 milliseconds
+        assertEquals(9 * MILLIS, jitterBuffer.getJitterNanos());
+        assertEquals(11 * MILLIS, jitterBuffer.getDelayNanos());
+        assertEquals(255 * 10 * MILLIS + 10 * MILLIS + 11 * MILLIS, playoutTime);
+
+        // the median of the jitter
+        jitterBuffer.setPercentile(50.0);
+        jitterBuffer.setMarginNanos(0);
+        addSamples(jitterBuffer, 16);
+        assertEquals(4 * MILLIS, jitterBuffer.getJitterNanos());
+        assertEquals(4 * MILLIS, jitterBuffer.getDelayNanos());
+    }
+
+    @Test
+    public void maxDelay() {
+        final BleMidiJitterBuffer jitterBuffer = new BleMidiJitterBuffer();
+        for (int i = 0; i < 256; i++) {
+            final long senderTime = i * 10 * MILLIS;
+            jitterBuffer.calculatePlayoutTime(senderTime, senderTime + (i % 2) * 500 * MILLIS);
+        }
+        assertEquals(500 * MILLIS, jitterBuffer.getJitterNanos());
+        assertEquals(100 * MILLIS, jitterBuffer.getDelayNanos());
+
+        // the lower cap is applied to the current delay immediately
+        jitterBuffer.setMaxDelayNanos(30 * MILLIS);
+        assertEquals(30 * MILLIS, jitterBuffer.getDelayNanos());
+    }
+
+    @Test
+    public void reset() {
+        final BleMidiJitterBuffer jitterBuffer = new BleMidiJitterBuffer();
+        addSamples(jitterBuffer, 256);
+        jitterBuffer.reset();
+
+        // the delay is kept, the fastest transit is measured again
+        assertEquals(11 * MILLIS, jitterBuffer.getDelayNanos());
+        assertEquals(30 * MILLIS + 11 * MILLIS, jitterBuffer.calculatePlayoutTime(0, 30 * MILLIS));
+    }
+}
@@ -0,0 +1,67 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BleMidiPacketEncoderTest {
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void timestampBytes() {
+        assertEquals(0, BleMidiPacketEncoder.getTimestamp(0));
+        assertEquals(1234, BleMidiPacketEncoder.getTimestamp(1234 * 1000000L));
+        assertEquals(5, BleMidiPacketEncoder.getTimestamp((BleMidiPacketEncoder.MAX_TIMESTAMP + 5) * 1000000L));
+
+        // the negative time keeps counting up to 0
+        assertEquals(BleMidiPacketEncoder.MAX_TIMESTAMP - 1, BleMidiPacketEncoder.getTimestamp(-1));
+        assertEquals(BleMidiPacketEncoder.MAX_TIMESTAMP - 2, BleMidiPacketEncoder.getTimestamp(-1000001L));
+        assertEquals(5, BleMidiPacketEncoder.getTimestamp((5 - BleMidiPacketEncoder.MAX_TIMESTAMP * 1000L) * 1000000L));
+
+        // 0x1fff: the header has the higher 6 bits, the timestamp byte has the lower 7 bits
+        assertEquals(0xbf, BleMidiPacketEncoder.getHeaderByte(0x1fff));
+        assertEquals(0xff, BleMidiPacketEncoder.getTimestampByte(0x1fff));
+        assertEquals(0x80, BleMidiPacketEncoder.getHeaderByte(0x7f));
+        assertEquals(0x81, BleMidiPacketEncoder.getHeaderByte(0x80));
+        assertEquals(0x80, BleMidiPacketEncoder.getTimestampByte(0x80));
+    }
+
+    @Test
+    public void messagesInOnePacket() {
+        final BleMidiPacketEncoder encoder = new BleMidiPacketEncoder();
+        assertEquals(0, encoder.size());
+
+        encoder.addMessage(0x105, bytes(0x90, 0x3c, 0x64));
+        encoder.addMessage(0x106, bytes(0xf8));
+        assertArrayEquals(bytes(0x82, 0x85, 0x90, 0x3c, 0x64, 0x86, 0xf8), encoder.toByteArray());
+        assertEquals(7, encoder.size());
+
+        encoder.reset();
+        assertEquals(0, encoder.size());
+        encoder.addMessage(0, bytes(0xb0, 0x07, 0x40));
+        assertArrayEquals(bytes(0x80, 0x80, 0xb0, 0x07, 0x40), encoder.toByteArray());
+    }
+
+    @Test
+    public void systemExclusivePackets() {
+        final byte[] message = BleMidiPacketEncoder.addSystemExclusiveTimestamps(bytes(0xf0, 0x01, 0x02, 0x03, 0xf7), 0x85);
+        assertArrayEquals(bytes(0x85, 0xf0, 0x01, 0x02, 0x03, 0x84, 0xf7), message);
+
+        // the timestamp before 0xF7 never becomes 0xF7
+        BleMidiPacketEncoder.setSystemExclusiveEndTimestamp(message, 0x7f);
+        assertEquals(0xfe, message[message.length - 2] & 0xff);
+
+        // split into the packets of 4 bytes, each packet starts with the header
+        assertArrayEquals(bytes(0x81, 0x85, 0xf0, 0x01), BleMidiPacketEncoder.encodeSystemExclusivePacket(message, 0, 4, 0x85));
+        assertArrayEquals(bytes(0x81, 0x02, 0x03, 0xfe), BleMidiPacketEncoder.encodeSystemExclusivePacket(message, 3, 4, 0x85));
+        assertArrayEquals(bytes(0x81, 0xf7), BleMidiPacketEncoder.encodeSystemExclusivePacket(message, 6, 4, 0x85));
+    }
+}
@@ -0,0 +1,191 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BleMidiPacketReplayerTest {
+    private TestMidiInputDevice device;
+
+    @Before
+    public void setUp() {
+        device = new TestMidiInputDevice();
+    }
+
+    @After
+    public void tearDown() {
+        device.terminate();
+    }
+
+    @Test
+    public void captureAndReplay() throws IOException, InterruptedException {
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final BleMidiPacketCaptureWriter writer = new BleMidiPacketCaptureWriter(captured);
+        device.midiParser.setPacketCaptureWriter(writer);
+
+        final long arrivalTime = System.nanoTime();
+        device.midiParser.parse(TestMidiInputDevice.bytes(0x80, 0x80, 0x90, 0x3c, 0x64), 0, 5, arrivalTime);
+        device.midiParser.parse(TestMidiInputDevice.bytes(0x80, 0x80, 0xf0, 0x01, 0x02), 0, 5, arrivalTime + 1000000L);
+        device.midiParser.parse(TestMidiInputDevice.bytes(0x80, 0x03, 0x80, 0xf7), 0, 4, arrivalTime + 2000000L);
+        device.midiParser.parse(TestMidiInputDevice.bytes(0x80, 0x80, 0x80, 0x3c, 0x00), 0, 5, arrivalTime + 3000000L);
+        device.midiParser.setPacketCaptureWriter(null);
+        writer.close();
+        assertFalse(writer.checkError());
+
+        Thread.sleep(10);
+        final List<String> expected = asList("90 3c 64", "f0 01 02 03 f7", "80 3c 00");
+        assertEquals(expected, device.dispatch());
+
+        // the events have been fired with the captured time
+        final TestMidiInputDevice replayDevice = new TestMidiInputDevice();
+        try (BleMidiPacketReplayer replayer = new BleMidiPacketReplayer(new ByteArrayInputStream(captured.toByteArray()))) {
+            assertEquals(4, replayer.replay(replayDevice.midiParser, false));
+            assertEquals(expected, replayDevice.messages);
+        } finally {
+            replayDevice.terminate();
+        }
+    }
+
+    @Test
+    public void fastReplay() throws IOException, InterruptedException {
+        // 100 seconds of the pitch wheel, 20000 events in 2000 packets
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final BleMidiPacketCaptureWriter writer = new BleMidiPacketCaptureWriter(captured);
+        final int packetCount = 2000;
+        final int packetEventCount = 10;
+        final byte[] packet = new byte[3 + packetEventCount * 2];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) 0x80;
+        packet[2] = (byte) 0xe0;
+        for (int i = 0; i < packetCount; i++) {
+            for (int j = 0; j < packetEventCount; j++) {
+                final int value = i * packetEventCount + j;
+                packet[3 + j * 2] = (byte) (value & 0x7f);
+                packet[4 + j * 2] = (byte) (value >> 7);
+            }
+            writer.write(packet, 0, packet.length, i * 50000000L);
+        }
+        writer.close();
+
+        // the replayer fires the events itself, and restores the dispatch mode
+        device.midiParser.setManualDispatch(false);
+        final long startTime = System.nanoTime();
+        try (BleMidiPacketReplayer replayer = new BleMidiPacketReplayer(new ByteArrayInputStream(captured.toByteArray()))) {
+            assertEquals(packetCount, replayer.replay(device.midiParser, false));
+        }
+        assertTrue(System.nanoTime() - startTime < 10000000000L);
+        assertFalse(device.midiParser.isManualDispatch());
+
+        assertEquals(0, device.midiParser.getDroppedEventCount());
+        synchronized (device) {
+            assertEquals(packetCount * packetEventCount, device.messages.size());
+            for (int i = 0; i < device.messages.size(); i++) {
+                final StringBuilder message = new StringBuilder("e0");
+                TestMidiInputDevice.appendHex(message, i & 0x7f);
+                TestMidiInputDevice.appendHex(message, i >> 7);
+                assertEquals(message.toString(), device.messages.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void tooLongPacket() throws IOException, InterruptedException {
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final BleMidiPacketCaptureWriter writer = new BleMidiPacketCaptureWriter(captured);
+        writer.write(new byte[BleMidiPacketCaptureWriter.MAX_PACKET_LENGTH + 1], 0, BleMidiPacketCaptureWriter.MAX_PACKET_LENGTH + 1, 0);
+        assertTrue(writer.checkError());
+        writer.close();
+
+        // the record with the length of 2^31: rejected before reading the packet
+        final byte[] capture = TestMidiInputDevice.bytes('B', 'M', 'C', 'P', 1, 0x00, 0x80, 0x80, 0x80, 0x80, 0x08);
+        try (BleMidiPacketReplayer replayer = new BleMidiPacketReplayer(new ByteArrayInputStream(capture))) {
+            replayer.replay(device.midiParser, false);
+            fail();
+        } catch (IOException e) {
+            assertEquals("invalid packet length: 2147483648", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void slowStream() throws IOException, InterruptedException {
+        // the stream blocks until all the packets have been parsed, over the size of the stream's buffer
+        final CountDownLatch parsed = new CountDownLatch(1);
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final BleMidiPacketCaptureWriter writer = new BleMidiPacketCaptureWriter(blockingStream(captured, parsed));
+        device.midiParser.setPacketCaptureWriter(writer);
+
+        final int packetCount = 1000;
+        final long arrivalTime = System.nanoTime();
+        for (int i = 0; i < packetCount; i++) {
+            device.midiParser.parse(TestMidiInputDevice.bytes(0x80, 0x80, 0xe0, i & 0x7f, i >> 7, 0x80, 0xe0, i & 0x7f, i >> 7), 0, 9, arrivalTime + i * 1000000L);
+            device.dispatch();
+        }
+        device.midiParser.setPacketCaptureWriter(null);
+        parsed.countDown();
+        writer.close();
+        assertFalse(writer.checkError());
+
+        final TestMidiInputDevice replayDevice = new TestMidiInputDevice();
+        try (BleMidiPacketReplayer replayer = new BleMidiPacketReplayer(new ByteArrayInputStream(captured.toByteArray()))) {
+            assertEquals(packetCount, replayer.replay(replayDevice.midiParser, false));
+        } finally {
+            replayDevice.terminate();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void captureBufferFull() throws IOException {
+        // the stream blocks while writing the packets, the capture fails instead of blocking
+        final CountDownLatch written = new CountDownLatch(1);
+        final BleMidiPacketCaptureWriter writer = new BleMidiPacketCaptureWriter(blockingStream(new ByteArrayOutputStream(), written));
+        final byte[] packet = new byte[1000];
+        packet[0] = (byte) 0x80;
+        for (int i = 0; i < 1000 && !writer.checkError(); i++) {
+            writer.write(packet, 0, packet.length, i * 1000000L);
+        }
+        assertTrue(writer.checkError());
+        written.countDown();
+        writer.close();
+    }
+
+    /**
+     * Creates the stream, blocks writing until the latch is released
+     *
+     * @param outputStream the stream to write
+     * @param latch the latch
+     * @return the stream
+     */
+    private static OutputStream blockingStream(final OutputStream outputStream, final CountDownLatch latch) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                outputStream.write(b, off, len);
+            }
+        };
+    }
+
+    @Test(expected = IOException.class)
+    public void notCapture() throws IOException {
+        new BleMidiPacketReplayer(new ByteArrayInputStream(TestMidiInputDevice.bytes('B', 'M', 'C', 'X', 1)));
+    }
+}
@@ -0,0 +1,728 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiInputMessageListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BleMidiParserTest {
+    private TestMidiInputDevice device;
+
+    @Before
+    public void setUp() {
+        device = new TestMidiInputDevice();
+    }
+
+    @After
+    public void tearDown() {
+        device.terminate();
+    }
+
+    @Test
+    public void runningStatus() {
+        // the second note has no status byte, the third note has the timestamp without status byte
+        device.parse(0x80, 0x80, 0x90, 0x3c, 0x64, 0x3e, 0x64, 0x80, 0x40, 0x00);
+        assertEquals(asList("90 3c 64", "90 3e 64", "90 40 00"), device.dispatch());
+
+        // the system real-time message keeps the running status
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x10, 0x80, 0xf8, 0x80, 0x07, 0x20);
+        assertEquals(asList("f8", "b0 07 10", "b0 07 20"), device.dispatch());
+    }
+
+    @Test
+    public void systemExclusive() {
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0x80, 0xf7);
+        assertEquals(asList("f0 01 02 03 f7"), device.dispatch());
+
+        // the message continues to the next packet, the packet starts with the header only
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02);
+        device.parse(0x80, 0x03, 0x04, 0x80, 0xf7);
+        assertEquals(asList("f0 01 02 03 04 f7"), device.dispatch());
+    }
+
+    @Test
+    public void systemExclusiveRecovery() {
+        // the timestamp before 0xF7 is 0xF7: the first 0xF7 is taken as the end of message, then recovered with the second 0xF7
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0xf7, 0xf7);
+        assertEquals(asList("f0 01 02 f7", "f0 01 02 03 f7"), device.dispatch());
+
+        // the next message is not affected
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x40);
+        assertEquals(asList("b0 07 40"), device.dispatch());
+    }
+
+    @Test
+    public void systemExclusiveChunkRecovery() {
+        final List<String> messages = new ArrayList<>();
+        device.midiParser.setSystemExclusiveChunkListener(new OnMidiSystemExclusiveChunkListener() {
+            private final StringBuilder message = new StringBuilder();
+
+            @Override
+            public void onMidiSystemExclusiveStart(@NotNull MidiInputDevice sender) {
+                message.setLength(0);
+            }
+
+            @Override
+            public void onMidiSystemExclusiveChunk(@NotNull MidiInputDevice sender, @NotNull byte[] data, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    TestMidiInputDevice.appendHex(message, data[i] & 0xff);
+                }
+            }
+
+            @Override
+            public void onMidiSystemExclusiveEnd(@NotNull MidiInputDevice sender) {
+                messages.add(message.toString());
+            }
+
+            @Override
+            public void onMidiSystemExclusiveAbort(@NotNull MidiInputDevice sender) {
+                messages.add("abort");
+            }
+        });
+
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0x85, 0xf7);
+        assertEquals(asList("f0 01 02 03 f7"), messages);
+        messages.clear();
+
+        // the timestamp before 0xF7 is 0xF7: the first 0xF7 is settled with the second 0xF7
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0xf7, 0xf7);
+        assertEquals(asList("f0 01 02 03 f7"), messages);
+        messages.clear();
+
+        // 0xF7 followed with the next message: the first 0xF7 was the end of message
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0xf7, 0x80, 0xf8);
+        assertEquals(asList("f0 01 02 f7"), messages);
+        assertEquals(asList("f8"), device.dispatch());
+        messages.clear();
+
+        // 0xF7 at the end of packet was the end of message
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0xf7);
+        assertEquals(asList("f0 01 02 f7"), messages);
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x40);
+        assertEquals(asList("b0 07 40"), device.dispatch());
+    }
+
+    @Test
+    public void systemExclusiveMaxLength() {
+        device.midiParser.setSystemExclusiveMaxLength(4);
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x03, 0x04, 0x80, 0xf7, 0x80, 0xf8);
+        assertEquals(asList("f8"), device.dispatch());
+
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x80, 0xf7);
+        assertEquals(asList("f0 01 02 f7"), device.dispatch());
+
+        // the long message in one packet
+        device.midiParser.setSystemExclusiveMaxLength(1000);
+        final int[] packet = new int[100000];
+        packet[0] = 0x80;
+        packet[1] = 0x80;
+        packet[2] = 0xf0;
+        for (int i = 3; i < packet.length - 2; i++) {
+            packet[i] = i & 0x7f;
+        }
+        packet[packet.length - 2] = 0x80;
+        packet[packet.length - 1] = 0xf7;
+        device.parse(packet);
+        device.parse(0x80, 0x80, 0xf8);
+        assertEquals(asList("f8"), device.dispatch());
+    }
+
+    @Test
+    public void realTimeInSystemExclusive() {
+        // the timestamp 0x85, and Timing Clock in the message
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x85, 0xf8, 0x03, 0x04, 0x86, 0xf7);
+        assertEquals(asList("f8", "f0 01 02 03 04 f7"), device.dispatch());
+
+        // the timestamp 0xF8 before 0xF7 is not Timing Clock
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0xf8, 0xf7);
+        assertEquals(asList("f0 01 02 f7"), device.dispatch());
+
+        // the message delivered incrementally
+        final StringBuilder message = new StringBuilder();
+        device.midiParser.setSystemExclusiveChunkListener(new OnMidiSystemExclusiveChunkListener() {
+            @Override
+            public void onMidiSystemExclusiveStart(@NotNull MidiInputDevice sender) {
+            }
+
+            @Override
+            public void onMidiSystemExclusiveChunk(@NotNull MidiInputDevice sender, @NotNull byte[] data, int offset, int length) {
+                message.append(TestMidiInputDevice.toHex(data, offset, length)).append(' ');
+            }
+
+            @Override
+            public void onMidiSystemExclusiveEnd(@NotNull MidiInputDevice sender) {
+            }
+
+            @Override
+            public void onMidiSystemExclusiveAbort(@NotNull MidiInputDevice sender) {
+            }
+        });
+        device.parse(0x80, 0x80, 0xf0, 0x01, 0x02, 0x85, 0xfe, 0x03, 0x04, 0x86, 0xf7);
+        assertEquals("f0 01 02 03 04 f7 ", message.toString());
+        assertEquals(asList("fe"), device.dispatch());
+    }
+
+    @Test
+    public void byteBuffer() {
+        // the notes with the running status, the SysEx, and the control change
+        final byte[] packet = TestMidiInputDevice.bytes(0x80, 0x80, 0x90, 0x3c, 0x64, 0x3e, 0x64, 0x80, 0xf0, 0x01, 0x02, 0x03, 0x80, 0xf7, 0x80, 0xb0, 0x07, 0x40);
+        device.midiParser.parse(packet);
+        final List<String> expected = device.dispatch();
+        assertEquals(asList("f0 01 02 03 f7", "b0 07 40", "90 3c 64", "90 3e 64"), expected);
+
+        // the packet in the middle of the array, surrounded by the status bytes
+        final byte[] array = new byte[packet.length + 8];
+        Arrays.fill(array, (byte) 0x90);
+        System.arraycopy(packet, 0, array, 5, packet.length);
+
+        // heap buffer: the slice has the array offset, the packet is from the position to the limit
+        final ByteBuffer heapBuffer = ByteBuffer.wrap(array, 2, array.length - 2).slice();
+        heapBuffer.position(3).limit(3 + packet.length);
+        device.midiParser.parse(heapBuffer);
+        assertEquals(3 + packet.length, heapBuffer.position());
+        assertEquals(3 + packet.length, heapBuffer.limit());
+        assertEquals(expected, device.dispatch());
+
+        // direct buffer
+        final ByteBuffer directBuffer = ByteBuffer.allocateDirect(array.length);
+        directBuffer.put(array);
+        directBuffer.position(5).limit(5 + packet.length);
+        device.midiParser.parse(directBuffer);
+        assertEquals(5 + packet.length, directBuffer.position());
+        assertEquals(5 + packet.length, directBuffer.limit());
+        assertEquals(expected, device.dispatch());
+
+        // the header only packet is consumed without events
+        directBuffer.position(5).limit(6);
+        device.midiParser.parse(directBuffer);
+        assertEquals(6, directBuffer.position());
+        assertEquals(asList(), device.dispatch());
+    }
+
+    @Test
+    public void eventOrderWithSameTiming() {
+        // control messages, note off, then note on
+        device.parse(0x80, 0x80, 0x90, 0x3c, 0x64, 0x80, 0x80, 0x3c, 0x00, 0x80, 0xb0, 0x07, 0x40);
+        assertEquals(asList("b0 07 40", "80 3c 00", "90 3c 64"), device.dispatch());
+    }
+
+    @Test
+    public void eventOrderWithTiming() {
+        // the events are fired in the order of their timing, not in the order of parsing
+        final long arrivalTime = System.nanoTime() - 10000000L;
+        device.parseAt(arrivalTime + 1000000L, 0x80, 0x80, 0x90, 0x3c, 0x64);
+        device.parseAt(arrivalTime, 0x80, 0x80, 0x90, 0x3e, 0x64);
+        assertEquals(asList("90 3e 64", "90 3c 64"), device.dispatch());
+    }
+
+    @Test
+    public void immediateDispatchEventTypes() {
+        device.midiParser.setImmediateDispatchEventTypes(MidiEventType.NOTES);
+        final long arrivalTime = System.nanoTime() + 1000000000L;
+
+        // the notes are fired on parsing, the control change waits for its timing
+        device.parseAt(arrivalTime, 0x80, 0x80, 0xb0, 0x07, 0x40, 0x80, 0x90, 0x3c, 0x64, 0x80, 0x80, 0x3c, 0x00);
+        assertEquals(asList("90 3c 64", "80 3c 00"), device.dispatch());
+        device.midiParser.dispatchDueEvents(arrivalTime - 1);
+        assertEquals(asList(), device.dispatch());
+        device.midiParser.dispatchDueEvents(arrivalTime);
+        assertEquals(asList("b0 07 40"), device.dispatch());
+
+        // back to the timing for all types
+        device.midiParser.setImmediateDispatchEventTypes(MidiEventType.NONE);
+        device.parseAt(arrivalTime, 0x80, 0x80, 0x90, 0x3e, 0x64);
+        assertEquals(asList(), device.dispatch());
+        device.midiParser.dispatchDueEvents(arrivalTime);
+        assertEquals(asList("90 3e 64"), device.dispatch());
+    }
+
+    @Test
+    public void eventOrderOverManyEvents() {
+        // the events with the same timing keep the arrival order, after the sequence exceeds 16 bits
+        final int eventCount = 65500;
+        final int packetEventCount = 500;
+        final int[] packet = new int[3 + packetEventCount * 2];
+        packet[0] = 0x80;
+        packet[1] = 0x80;
+        packet[2] = 0xb0;
+        for (int i = 0; i < packetEventCount; i++) {
+            packet[3 + i * 2] = 0x07;
+            packet[4 + i * 2] = i & 0x7f;
+        }
+        for (int i = 0; i < eventCount; i += packetEventCount) {
+            device.parse(packet);
+            assertEquals(packetEventCount, device.dispatch().size());
+        }
+
+        final int[] wrappingPacket = new int[3 + 60 * 2];
+        wrappingPacket[0] = 0x80;
+        wrappingPacket[1] = 0x80;
+        wrappingPacket[2] = 0xb0;
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            wrappingPacket[3 + i * 2] = 0x07;
+            wrappingPacket[4 + i * 2] = i;
+            final StringBuilder message = new StringBuilder("b0 07");
+            TestMidiInputDevice.appendHex(message, i);
+            expected.add(message.toString());
+        }
+        device.parse(wrappingPacket);
+        assertEquals(expected, device.dispatch());
+    }
+
+    @Test
+    public void timestampsOfEvents() {
+        final List<Long> senderTimes = new ArrayList<>();
+        final List<Long> arrivalTimes = new ArrayList<>();
+        device.midiParser.setMidiInputMessageListener(new OnMidiInputMessageListener() {
+            @Override
+            public void onMidiInputMessage(@NotNull MidiInputDevice sender, int message, long timestamp, long senderTime, long arrivalTime) {
+                senderTimes.add(senderTime);
+                arrivalTimes.add(arrivalTime);
+            }
+
+            @Override
+            public void onMidiInputSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive, long timestamp, long senderTime, long arrivalTime) {
+                senderTimes.add(senderTime);
+                arrivalTimes.add(arrivalTime);
+            }
+        });
+        final List<Long> batchSenderTimes = new ArrayList<>();
+        device.midiParser.setMidiInputEventBatchListener(new OnMidiInputEventBatchListener() {
+            @Override
+            public void onMidiInputEventBatch(@NotNull MidiInputDevice sender, @NotNull int[] status, @NotNull int[] data1, @NotNull int[] data2, @NotNull long[] timestamps, @NotNull long[] senderTimes, @NotNull long[] arrivalTimes, int count) {
+                for (int i = 0; i < count; i++) {
+                    batchSenderTimes.add(senderTimes[i]);
+                }
+            }
+        });
+
+        // the timestamp 0: the sender's time is unknown
+        final long arrivalTime = System.nanoTime() - 10000000L;
+        device.parseAt(arrivalTime, 0x80, 0x80, 0x90, 0x3c, 0x64);
+        // the timestamp 0x85 (133 milliseconds)
+        device.parseAt(arrivalTime + 1000000L, 0x81, 0x85, 0x80, 0x3c, 0x00);
+        device.dispatch();
+
+        assertEquals(asList(arrivalTime, arrivalTime + 1000000L), arrivalTimes);
+        assertEquals(2, senderTimes.size());
+        assertEquals(OnMidiInputMessageListener.SENDER_TIME_UNKNOWN, (long) senderTimes.get(0));
+        assertEquals(133, BleMidiPacketEncoder.getTimestamp(senderTimes.get(1)));
+        assertEquals(senderTimes, batchSenderTimes);
+
+        // the timestamp 0x1ffe (8190 milliseconds) just after 0x85: unwrapped to -1 millisecond, before the first timestamp
+        device.parseAt(arrivalTime + 2000000L, 0xbf, 0xfe, 0x90, 0x3e, 0x64);
+        device.dispatch();
+        assertTrue(senderTimes.get(2) < 0);
+        assertEquals(8190, BleMidiPacketEncoder.getTimestamp(senderTimes.get(2)));
+    }
+
+    @Test
+    public void timestampRollover() {
+        final List<Long> senderTimes = new ArrayList<>();
+        device.midiParser.setMidiInputMessageListener(new OnMidiInputMessageListener() {
+            @Override
+            public void onMidiInputMessage(@NotNull MidiInputDevice sender, int message, long timestamp, long senderTime, long arrivalTime) {
+                senderTimes.add(senderTime);
+            }
+
+            @Override
+            public void onMidiInputSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive, long timestamp, long senderTime, long arrivalTime) {
+                senderTimes.add(senderTime);
+            }
+        });
+
+        // the timestampLow wraps around in the packet: 0x7e (126 milliseconds), then 0x01 with the implicit timestampHigh + 1 (129 milliseconds)
+        device.parseAt(System.nanoTime() - 10000000L, 0x80, 0xfe, 0x90, 0x3c, 0x64, 0x81, 0x90, 0x3e, 0x64);
+        device.dispatch();
+
+        assertEquals(2, senderTimes.size());
+        assertEquals(126, BleMidiPacketEncoder.getTimestamp(senderTimes.get(0)));
+        assertEquals(129, BleMidiPacketEncoder.getTimestamp(senderTimes.get(1)));
+    }
+
+    @Test
+    public void overflowDropOldest() {
+        device.midiParser.setEventQueueCapacity(2, MidiEventQueueOverflowPolicy.DROP_OLDEST);
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x10, 0x80, 0x07, 0x20, 0x80, 0x07, 0x30);
+        assertEquals(asList("b0 07 20", "b0 07 30"), device.dispatch());
+        assertEquals(1, device.midiParser.getDroppedEventCount());
+        assertEquals(1, device.midiParser.getEventQueueOverflowCount());
+    }
+
+    @Test
+    public void overflowDropNewest() {
+        device.midiParser.setEventQueueCapacity(2, MidiEventQueueOverflowPolicy.DROP_NEWEST);
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x10, 0x80, 0x07, 0x20, 0x80, 0x07, 0x30);
+        assertEquals(asList("b0 07 10", "b0 07 20"), device.dispatch());
+        assertEquals(1, device.midiParser.getDroppedEventCount());
+    }
+
+    @Test
+    public void overflowCoalesce() {
+        // the newer value overwrites the latest queued event of the same controller
+        device.midiParser.setEventQueueCapacity(2, MidiEventQueueOverflowPolicy.COALESCE);
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x10, 0x80, 0x07, 0x20, 0x80, 0x07, 0x30);
+        assertEquals(asList("b0 07 10", "b0 07 30"), device.dispatch());
+        assertEquals(1, device.midiParser.getDroppedEventCount());
+
+        // the note events are not coalesced, the oldest event is dropped
+        device.parse(0x80, 0x80, 0x90, 0x3c, 0x64, 0x80, 0x3e, 0x64, 0x80, 0x40, 0x64);
+        assertEquals(asList("90 3e 64", "90 40 64"), device.dispatch());
+    }
+
+    @Test
+    public void overflowCoalesceAfterNote() {
+        device.midiParser.setEventQueueCapacity(3, MidiEventQueueOverflowPolicy.COALESCE);
+
+        // the packets arrived 1 millisecond apart
+        final long arrivalTime = System.nanoTime() - 10000000L;
+
+        // the latest control change is after the note, it's overwritten
+        device.parseAt(arrivalTime, 0x80, 0x80, 0xb0, 0x07, 0x10);
+        device.parseAt(arrivalTime + 1000000L, 0x80, 0x80, 0x90, 0x3c, 0x64);
+        device.parseAt(arrivalTime + 2000000L, 0x80, 0x80, 0xb0, 0x07, 0x20);
+        device.parseAt(arrivalTime + 3000000L, 0x80, 0x80, 0xb0, 0x07, 0x30);
+        assertEquals(asList("b0 07 10", "90 3c 64", "b0 07 30"), device.dispatch());
+
+        // the latest control change is before the note, the newer value doesn't move before the note
+        device.parseAt(arrivalTime + 4000000L, 0x80, 0x80, 0xb0, 0x07, 0x10);
+        device.parseAt(arrivalTime + 5000000L, 0x80, 0x80, 0x90, 0x3c, 0x64);
+        device.parseAt(arrivalTime + 6000000L, 0x80, 0x80, 0x90, 0x3e, 0x64);
+        device.parseAt(arrivalTime + 7000000L, 0x80, 0x80, 0xb0, 0x07, 0x30);
+        assertEquals(asList("90 3c 64", "90 3e 64", "b0 07 30"), device.dispatch());
+        assertEquals(2, device.midiParser.getDroppedEventCount());
+    }
+
+    @Test
+    public void coalescedEventTypes() {
+        device.midiParser.setCoalescedEventTypes(MidiEventType.CONTROL_CHANGE);
+
+        // only the latest value of the same channel and the same controller is fired
+        device.parse(0x80, 0x80, 0xb0, 0x07, 0x10, 0x80, 0xb1, 0x07, 0x30, 0x80, 0xb0, 0x0a, 0x40, 0x80, 0xb0, 0x07, 0x20);
+        assertEquals(asList("b1 07 30", "b0 0a 40", "b0 07 20"), device.dispatch());
+
+        // not coalesced: the switches like the sustain pedal
+        device.parse(0x80, 0x80, 0xb0, 0x40, 0x7f, 0x80, 0x40, 0x00);
+        assertEquals(asList("b0 40 7f", "b0 40 00"), device.dispatch());
+
+        // not coalesced: the parameter numbers and the data entry of two RPN messages
+        device.parse(0x80, 0x80, 0xb0, 0x65, 0x00, 0x80, 0x64, 0x00, 0x80, 0x06, 0x02, 0x80, 0x65, 0x00, 0x80, 0x64, 0x01, 0x80, 0x06, 0x40);
+        assertEquals(asList("b0 65 00", "b0 64 00", "b0 06 02", "b0 65 00", "b0 64 01", "b0 06 40"), device.dispatch());
+    }
+
+    @Test
+    public void coalescedEventTypesWithNote() {
+        device.midiParser.setCoalescedEventTypes(MidiEventType.CONTROL_CHANGE);
+
+        // the packets arrived 1 millisecond apart
+        final long arrivalTime = System.nanoTime() - 10000000L;
+
+        // the value before the note is applied to the note, it's not overwritten with the value after the note
+        device.parseAt(arrivalTime, 0x80, 0x80, 0xb0, 0x07, 0x10);
+        device.parseAt(arrivalTime + 1000000L, 0x80, 0x80, 0x90, 0x3c, 0x64);
+        device.parseAt(arrivalTime + 2000000L, 0x80, 0x80, 0xb0, 0x07, 0x20);
+        assertEquals(asList("b0 07 10", "90 3c 64", "b0 07 20"), device.dispatch());
+
+        device.parseAt(arrivalTime + 3000000L, 0x80, 0x80, 0xb0, 0x07, 0x10);
+        device.parseAt(arrivalTime + 4000000L, 0x80, 0x80, 0xb0, 0x07, 0x20);
+        device.parseAt(arrivalTime + 5000000L, 0x80, 0x80, 0x90, 0x3c, 0x64);
+        device.parseAt(arrivalTime + 6000000L, 0x80, 0x80, 0xb0, 0x40, 0x7f);
+        device.parseAt(arrivalTime + 7000000L, 0x80, 0x80, 0x80, 0x3c, 0x00);
+        device.parseAt(arrivalTime + 8000000L, 0x80, 0x80, 0xb0, 0x40, 0x00);
+        assertEquals(asList("b0 07 20", "90 3c 64", "b0 40 7f", "80 3c 00", "b0 40 00"), device.dispatch());
+    }
+
+    @Test
+    public void rpnNrpnOnChannels() {
+        final RpnNrpnRecorder recorder = new RpnNrpnRecorder();
+        device.setOnMidiInputEventListener(recorder);
+
+        // channel 1 selects RPN 0, channel 2 selects NRPN 136
+        device.parse(0x80, 0x80, 0xb0, 0x65, 0x00, 0x80, 0x64, 0x00);
+        device.parse(0x80, 0x80, 0xb1, 0x63, 0x01, 0x80, 0x62, 0x08);
+        // the data entry and the increment/decrement, interleaved on the channels
+        device.parse(0x80, 0x80, 0xb0, 0x06, 0x02);
+        device.parse(0x80, 0x80, 0xb1, 0x06, 0x40);
+        device.parse(0x80, 0x80, 0xb0, 0x26, 0x32);
+        device.parse(0x80, 0x80, 0xb1, 0x60, 0x00);
+        device.parse(0x80, 0x80, 0xb0, 0x61, 0x00);
+        // channel 2 selects RPN 1, channel 1 keeps RPN 0 and its LSB
+        device.parse(0x80, 0x80, 0xb1, 0x65, 0x00, 0x80, 0x64, 0x01, 0x80, 0x06, 0x0a);
+        device.parse(0x80, 0x80, 0xb0, 0x06, 0x03);
+        // channel 2 selects NRPN 136 again, its value has been kept
+        device.parse(0x80, 0x80, 0xb1, 0x63, 0x01, 0x80, 0x62, 0x08, 0x80, 0x61, 0x00);
+        device.dispatch();
+
+        assertEquals(asList("rpn 0 0 256", "nrpn 1 136 8192", "rpn 0 0 306", "nrpn 1 136 8193", "rpn 0 0 305",
+                "rpn 1 1 1280", "rpn 0 0 433", "nrpn 1 136 8192"), recorder.messages);
+
+        // the increment/decrement stays in the 14 bits range
+        device.parse(0x80, 0x80, 0xb1, 0x06, 0x7f, 0x80, 0x26, 0x7f, 0x80, 0x60, 0x00);
+        device.parse(0x80, 0x80, 0xb0, 0x06, 0x00, 0x80, 0x26, 0x00, 0x80, 0x61, 0x00);
+        recorder.messages.clear();
+        device.dispatch();
+        assertEquals(asList("nrpn 1 136 16256", "nrpn 1 136 16383", "nrpn 1 136 16383", "rpn 0 0 49", "rpn 0 0 0", "rpn 0 0 0"),
+                recorder.messages);
+    }
+
+    @Test
+    public void overflowBlock() throws InterruptedException {
+        // the slow listener: the queue and the ingress buffer become full, and the parsing thread blocks
+        device.midiParser.setEventQueueCapacity(1, MidiEventQueueOverflowPolicy.BLOCK);
+        device.midiParser.setMidiInputEventBatchListener(new OnMidiInputEventBatchListener() {
+            @Override
+            public void onMidiInputEventBatch(@NotNull MidiInputDevice sender, @NotNull int[] status, @NotNull int[] data1, @NotNull int[] data2, @NotNull long[] timestamps, @NotNull long[] senderTimes, @NotNull long[] arrivalTimes, int count) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        device.midiParser.setManualDispatch(false);
+
+        // pitch wheel with the running status, the value is the order of the events
+        final int packetEventCount = 1000;
+        final int packetCount = 3;
+        final int[] packet = new int[3 + packetEventCount * 2];
+        packet[0] = 0x80;
+        packet[1] = 0x80;
+        packet[2] = 0xe0;
+        for (int i = 0; i < packetCount; i++) {
+            for (int j = 0; j < packetEventCount; j++) {
+                final int value = i * packetEventCount + j;
+                packet[3 + j * 2] = value & 0x7f;
+                packet[4 + j * 2] = value >> 7;
+            }
+            device.parse(packet);
+        }
+
+        waitForMessages(packetEventCount * packetCount);
+        synchronized (device) {
+            assertEquals(packetEventCount * packetCount, device.messages.size());
+            for (int i = 0; i < device.messages.size(); i++) {
+                final StringBuilder message = new StringBuilder("e0");
+                TestMidiInputDevice.appendHex(message, i & 0x7f);
+                TestMidiInputDevice.appendHex(message, i >> 7);
+                assertEquals(message.toString(), device.messages.get(i));
+            }
+        }
+        assertEquals(0, device.midiParser.getDroppedEventCount());
+    }
+
+    @Test
+    public void sharedEventDispatcher() throws InterruptedException {
+        final int dispatcherThreadCount = countThreads("EventDequeueThread");
+        final TestMidiInputDevice[] devices = new TestMidiInputDevice[2];
+        BleMidiParser.setUseSharedEventDispatcher(true);
+        try {
+            for (int i = 0; i < devices.length; i++) {
+                devices[i] = new TestMidiInputDevice();
+                devices[i].midiParser.setManualDispatch(false);
+            }
+        } finally {
+            BleMidiParser.setUseSharedEventDispatcher(false);
+        }
+
+        try {
+            // no dispatching thread per parser
+            assertTrue(countThreads("EventDequeueThread") <= dispatcherThreadCount);
+            assertEquals(1, countThreads("SharedEventDequeueThread"));
+
+            // pitch wheel with the running status, the value is the order of the events, the packets are interleaved over the parsers
+            final int packetEventCount = 50;
+            final int packetCount = 20;
+            final int[] packet = new int[3 + packetEventCount * 2];
+            packet[0] = 0x80;
+            packet[1] = 0x80;
+            final long arrivalTime = System.nanoTime() - 10000000L;
+            for (int i = 0; i < packetCount; i++) {
+                for (int d = 0; d < devices.length; d++) {
+                    packet[2] = 0xe0 | d;
+                    for (int j = 0; j < packetEventCount; j++) {
+                        final int value = i * packetEventCount + j;
+                        packet[3 + j * 2] = value & 0x7f;
+                        packet[4 + j * 2] = value >> 7;
+                    }
+                    devices[d].parseAt(arrivalTime + i * 1000L, packet);
+                }
+            }
+
+            for (int d = 0; d < devices.length; d++) {
+                waitForMessages(devices[d], packetEventCount * packetCount);
+                synchronized (devices[d]) {
+                    assertEquals(packetEventCount * packetCount, devices[d].messages.size());
+                    for (int i = 0; i < devices[d].messages.size(); i++) {
+                        final StringBuilder message = new StringBuilder();
+                        TestMidiInputDevice.appendHex(message, 0xe0 | d);
+                        TestMidiInputDevice.appendHex(message, i & 0x7f);
+                        TestMidiInputDevice.appendHex(message, i >> 7);
+                        assertEquals(message.toString(), devices[d].messages.get(i));
+                    }
+                }
+            }
+        } finally {
+            for (TestMidiInputDevice sharedDevice : devices) {
+                sharedDevice.terminate();
+            }
+        }
+    }
+
+    private static int countThreads(@NotNull String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void rejectingExecutor() throws InterruptedException {
+        // the executor can't run the tasks: the events are fired on the dispatching thread
+        device.midiParser.setDispatchExecutor(new Executor() {
+            @Override
+            public void execute(@NotNull Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        device.midiParser.setManualDispatch(false);
+
+        device.parse(0x80, 0x80, 0x90, 0x3c, 0x64);
+        waitForMessages(1);
+        device.parse(0x80, 0x80, 0x80, 0x3c, 0x00);
+        waitForMessages(2);
+        assertEquals(asList("90 3c 64", "80 3c 00"), device.messages);
+    }
+
+    private void waitForMessages(int count) throws InterruptedException {
+        waitForMessages(device, count);
+    }
+
+    private static void waitForMessages(@NotNull TestMidiInputDevice device, int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + 5000000000L;
+        while (System.nanoTime() < deadline) {
+            synchronized (device) {
+                if (device.messages.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void subscribedEventTypes() {
+        device.midiParser.setSubscribedEventTypes(MidiEventType.ALL & ~MidiEventType.ACTIVE_SENSING);
+        device.parse(0x80, 0x80, 0xfe, 0x80, 0x90, 0x3c, 0x64);
+        assertEquals(asList("90 3c 64"), device.dispatch());
+    }
+
+    /**
+     * Records the RPN/NRPN events as the strings like "rpn 0 0 256", with the channel, the function and the value
+     */
+    private static final class RpnNrpnRecorder implements OnMidiInputEventListener {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void onRPNMessage(@NotNull MidiInputDevice sender, int channel, int function, int value) {
+            messages.add("rpn " + channel + " " + function + " " + value);
+        }
+
+        @Override
+        public void onNRPNMessage(@NotNull MidiInputDevice sender, int channel, int function, int value) {
+            messages.add("nrpn " + channel + " " + function + " " + value);
+        }
+
+        @Override
+        public void onMidiSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive) {
+        }
+
+        @Override
+        public void onMidiNoteOff(@NotNull MidiInputDevice sender, int channel, int note, int velocity) {
+        }
+
+        @Override
+        public void onMidiNoteOn(@NotNull MidiInputDevice sender, int channel, int note, int velocity) {
+        }
+
+        @Override
+        public void onMidiPolyphonicAftertouch(@NotNull MidiInputDevice sender, int channel, int note, int pressure) {
+        }
+
+        @Override
+        public void onMidiControlChange(@NotNull MidiInputDevice sender, int channel, int function, int value) {
+        }
+
+        @Override
+        public void onMidiProgramChange(@NotNull MidiInputDevice sender, int channel, int program) {
+        }
+
+        @Override
+        public void onMidiChannelAftertouch(@NotNull MidiInputDevice sender, int channel, int pressure) {
+        }
+
+        @Override
+        public void onMidiPitchWheel(@NotNull MidiInputDevice sender, int channel, int amount) {
+        }
+
+        @Override
+        public void onMidiTimeCodeQuarterFrame(@NotNull MidiInputDevice sender, int timing) {
+        }
+
+        @Override
+        public void onMidiSongSelect(@NotNull MidiInputDevice sender, int song) {
+        }
+
+        @Override
+        public void onMidiSongPositionPointer(@NotNull MidiInputDevice sender, int position) {
+        }
+
+        @Override
+        public void onMidiTuneRequest(@NotNull MidiInputDevice sender) {
+        }
+
+        @Override
+        public void onMidiTimingClock(@NotNull MidiInputDevice sender) {
+        }
+
+        @Override
+        public void onMidiStart(@NotNull MidiInputDevice sender) {
+        }
+
+        @Override
+        public void onMidiContinue(@NotNull MidiInputDevice sender) {
+        }
+
+        @Override
+        public void onMidiStop(@NotNull MidiInputDevice sender) {
+        }
+
+        @Override
+        public void onMidiActiveSensing(@NotNull MidiInputDevice sender) {
+        }
+
+        @Override
+        public void onMidiReset(@NotNull MidiInputDevice sender) {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package jp.kshoji.blemidi.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiInputMessageListener;
+
+/**
+ * {@link MidiInputDevice} for the tests, records the fired messages as the hex strings like "90 3c 64"<br />
+ * The events are fired manually with {@link #dispatch()}, the timestamped events are due on their arrival without the playout delay.
+ */
+final class TestMidiInputDevice extends MidiInputDevice {
+    final BleMidiParser midiParser;
+    final List<String> messages = new ArrayList<>();
+
+    TestMidiInputDevice() {
+        midiParser = new BleMidiParser(this);
+        midiParser.setManualDispatch(true);
+        midiParser.getJitterBuffer().setMaxDelayNanos(0);
+        midiParser.setMidiInputMessageListener(new OnMidiInputMessageListener() {
+            @Override
+            public void onMidiInputMessage(@NotNull MidiInputDevice sender, int message, long timestamp, long senderTime, long arrivalTime) {
+                final int length = PackedMidiMessage.getLength(message);
+                final int[] data = {PackedMidiMessage.getStatus(message), PackedMidiMessage.getData1(message), PackedMidiMessage.getData2(message)};
+                final StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < length; i++) {
+                    appendHex(builder, data[i]);
+                }
+                record(builder);
+            }
+
+            @Override
+            public void onMidiInputSystemExclusive(@NotNull MidiInputDevice sender, @NotNull byte[] systemExclusive, long timestamp, long senderTime, long arrivalTime) {
+                record(toHex(systemExclusive, 0, systemExclusive.length));
+            }
+        });
+        midiParser.start();
+    }
+
+    static void appendHex(@NotNull StringBuilder builder, int data) {
+        if (builder.length() > 0) {
+            builder.append(' ');
+        }
+        builder.append(Character.forDigit((data >> 4) & 0xf, 16)).append(Character.forDigit(data & 0xf, 16));
+    }
+
+    @NotNull
+    static String toHex(@NotNull byte[] data, int offset, int length) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = offset; i < offset + length; i++) {
+            appendHex(builder, data[i] & 0xff);
+        }
+        return builder.toString();
+    }
+
+    @NotNull
+    static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private synchronized void record(@NotNull CharSequence message) {
+        messages.add(message.toString());
+    }
+
+    /**
+     * Parses the packet, received just now
+     *
+     * @param packet the packet bytes
+     */
+    void parse(int... packet) {
+        midiParser.parse(bytes(packet), 0, packet.length, System.nanoTime());
+    }
+
+    /**
+     * Parses the packet, received at the time
+     *
+     * @param arrivalTime the time the packet has been received, in {@link System#nanoTime()} base
+     * @param packet the packet bytes
+     */
+    void parseAt(long arrivalTime, int... packet) {
+        midiParser.parse(bytes(packet), 0, packet.length, arrivalTime);
+    }
+
+    /**
+     * Fires the due events, and obtains the recorded messages
+     *
+     * @return the messages fired since the last call
+     */
+    @NotNull
+    synchronized List<String> dispatch() {
+        midiParser.dispatchDueEvents();
+        final List<String> result = new ArrayList<>(messages);
+        messages.clear();
+        return result;
+    }
+
+    @Override
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        midiParser.setMidiInputEventListener(midiInputEventListener);
+    }
+
+    @NotNull
+    @Override
+    public BleMidiParser getParser() {
+        return midiParser;
+    }
+
+    @Override
+    public void start() {
+        midiParser.start();
+    }
+
+    @Override
+    public void stop() {
+        midiParser.stop();
+    }
+
+    @Override
+    public void terminate() {
+        midiParser.terminate();
+    }
+
+    @NotNull
+    @Override
+    public String getDeviceName() {
+        return "test";
+    }
+
+    @NotNull
+    @Override
+    public String getManufacturer() {
+        return "";
+    }
+
+    @NotNull
+    @Override
+    public String getModel() {
+        return "";
+    }
+
+    @NotNull
+    @Override
+    public String getDeviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+}
@@ -337,7 +337,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gatt.getDevice().getAddress());
             if (midiInputDevices != null) {
                 for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).incomingData(value);
+                    ((InternalMidiInputDevice) midiInputDevice).incomingData(value, 0, value.length);
                 }
             }
         }
@@ -348,8 +348,9 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
             Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gatt.getDevice().getAddress());
             if (midiInputDevices != null) {
+                final byte[] value = characteristic.getValue();
                 for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).incomingData(characteristic.getValue());
+                    ((InternalMidiInputDevice) midiInputDevice).incomingData(value, 0, value.length);
                 }
             }
         }
@@ -738,6 +739,12 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             midiParser.setMidiInputEventListener(midiInputEventListener);
         }
 
+        @NonNull
+        @Override
+        public BleMidiParser getParser() {
+            return midiParser;
+        }
+
         @NonNull
         @Override
         public String getDeviceName() throws SecurityException {
@@ -769,10 +776,12 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         /**
          * Parse the MIDI data
          *
-         * @param data the MIDI data
+         * @param data the array contains the MIDI data
+         * @param offset the offset of the MIDI data in the array
+         * @param length the length of the MIDI data
          */
-        private void incomingData(@NonNull byte[] data) {
-            midiParser.parse(data);
+        private void incomingData(@NonNull byte[] data, int offset, int length) {
+            midiParser.parse(data, offset, length);
         }
     }
 
@@ -2,8 +2,7 @@ package jp.kshoji.blemidi.device;
 
 import android.support.annotation.NonNull;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import jp.kshoji.blemidi.util.BleMidiPacketEncoder;
 
 /**
  * Represents BLE MIDI Output Device
@@ -12,9 +11,9 @@ import java.io.IOException;
  */
 public abstract class MidiOutputDevice {
 
-    public static final int MAX_TIMESTAMP = 8192;
+    public static final int MAX_TIMESTAMP = BleMidiPacketEncoder.MAX_TIMESTAMP;
 
-    final ByteArrayOutputStream transferDataStream = new ByteArrayOutputStream();
+    final BleMidiPacketEncoder packetEncoder = new BleMidiPacketEncoder();
 
     /**
      * Transfer data
@@ -78,12 +77,11 @@ public abstract class MidiOutputDevice {
             while (true) {
                 // running
                 while (transferDataThreadAlive && isRunning) {
-                    synchronized (transferDataStream) {
-                        if (writtenDataCount > 0) {
-                            if (transferData(transferDataStream.toByteArray())) {
-                                // reset the stream if transfer succeed
-                                transferDataStream.reset();
-                                writtenDataCount = 0;
+                    synchronized (packetEncoder) {
+                        if (packetEncoder.size() > 0) {
+                            if (transferData(packetEncoder.toByteArray())) {
+                                // reset the packet if transfer succeed
+                                packetEncoder.reset();
                             }
                         }
                     }
@@ -149,27 +147,22 @@ public abstract class MidiOutputDevice {
         transferDataThread.interrupt();
     }
 
-    transient int writtenDataCount;
+    /**
+     * Obtains the current BLE MIDI timestamp, from the monotonic clock
+     *
+     * @return the timestamp in milliseconds, 0 to {@link #MAX_TIMESTAMP} - 1
+     */
+    private static int getCurrentTimestamp() {
+        return BleMidiPacketEncoder.getTimestamp(System.nanoTime());
+    }
+
     private void storeTransferData(byte[] data) {
         if (!transferDataThreadAlive || !isRunning) {
             return;
         }
 
-        synchronized (transferDataStream) {
-            long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
-            if (writtenDataCount == 0) {
-                // Store timestamp high
-                transferDataStream.write((byte) (0x80 | ((timestamp >> 7) & 0x3f)));
-                writtenDataCount++;
-            }
-            // timestamp low
-            transferDataStream.write((byte) (0x80 | (timestamp & 0x7f)));
-            writtenDataCount++;
-            try {
-                transferDataStream.write(data);
-                writtenDataCount += data.length;
-            } catch (IOException ignored) {
-            }
+        synchronized (packetEncoder) {
+            packetEncoder.addMessage(getCurrentTimestamp(), data);
 
             transferDataThread.interrupt();
         }
@@ -211,34 +204,14 @@ public abstract class MidiOutputDevice {
      * @param systemExclusive : start with 'F0', and end with 'F7'
      */
     public final void sendMidiSystemExclusive(@NonNull byte[] systemExclusive) {
-        byte[] timestampAddedSystemExclusive = new byte[systemExclusive.length + 2];
-        System.arraycopy(systemExclusive, 0, timestampAddedSystemExclusive, 1, systemExclusive.length);
-
-        long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
-
-        // extend a byte for timestamp LSB, before the last byte('F7')
-        timestampAddedSystemExclusive[systemExclusive.length + 1] = systemExclusive[systemExclusive.length - 1];
-        // set first byte to timestamp LSB
-        timestampAddedSystemExclusive[0] = (byte) (0x80 | (timestamp & 0x7f));
+        int timestamp = getCurrentTimestamp();
+        final byte[] timestampAddedSystemExclusive = BleMidiPacketEncoder.addSystemExclusiveTimestamps(systemExclusive, timestamp);
 
         // split into bufferSize bytes. BLE can't send more than (bufferSize: MTU - 3) bytes.
         int bufferSize = getBufferSize();
-        byte[] writeBuffer = new byte[bufferSize];
         for (int i = 0; i < timestampAddedSystemExclusive.length; i += (bufferSize - 1)) {
-            // Don't send 0xF7 timestamp LSB inside of SysEx(MIDI parser will fail) 0x7f -> 0x7e
-            timestampAddedSystemExclusive[systemExclusive.length] = (byte) (0x80 | (timestamp & 0x7e));
-
-            if (i + (bufferSize - 1) <= timestampAddedSystemExclusive.length) {
-                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, (bufferSize - 1));
-            } else {
-                // last message
-                writeBuffer = new byte[timestampAddedSystemExclusive.length - i + 1];
-
-                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, timestampAddedSystemExclusive.length - i);
-            }
-
-            // timestamp MSB
-            writeBuffer[0] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+            BleMidiPacketEncoder.setSystemExclusiveEndTimestamp(timestampAddedSystemExclusive, timestamp);
+            final byte[] writeBuffer = BleMidiPacketEncoder.encodeSystemExclusivePacket(timestampAddedSystemExclusive, i, bufferSize, timestamp);
 
             // immediately transfer data
             while (true) {
@@ -252,7 +225,7 @@ public abstract class MidiOutputDevice {
                 }
             }
 
-            timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+            timestamp = getCurrentTimestamp();
         }
     }
 
@@ -421,7 +421,7 @@ public final class BleMidiPeripheralProvider {
                 MidiInputDevice midiInputDevice = midiInputDevicesMap.get(device.getAddress());
 
                 if (midiInputDevice != null) {
-                    ((InternalMidiInputDevice)midiInputDevice).incomingData(value);
+                    ((InternalMidiInputDevice)midiInputDevice).incomingData(value, 0, value.length);
                 }
 
                 if (responseNeeded) {
@@ -631,6 +631,12 @@ public final class BleMidiPeripheralProvider {
             midiParser.setMidiInputEventListener(midiInputEventListener);
         }
 
+        @NonNull
+        @Override
+        public BleMidiParser getParser() {
+            return midiParser;
+        }
+
         @NonNull
         @Override
         public String getDeviceName() throws SecurityException {
@@ -649,8 +655,8 @@ public final class BleMidiPeripheralProvider {
             return "";
         }
 
-        private void incomingData(@NonNull byte[] data) {
-            midiParser.parse(data);
+        private void incomingData(@NonNull byte[] data, int offset, int length) {
+            midiParser.parse(data, offset, length);
         }
 
         /**
@@ -0,0 +1,39 @@
+package jp.kshoji.blemidi.util;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link Executor} runs the tasks on the thread of {@link Handler}<br />
+ * Set it with {@link BleMidiParser#setDispatchExecutor(Executor)} to call the input listeners on the thread of the handler, like the UI thread.
+ *
+ * @author K.Shoji
+ */
+public final class HandlerExecutor implements Executor {
+    private final Handler handler;
+
+    /**
+     * Constructor
+     *
+     * @param handler the handler to run the tasks
+     */
+    public HandlerExecutor(@NonNull Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Posts the task to the handler
+     *
+     * @param command the task
+     * @throws RejectedExecutionException if the handler's Looper has been quit, the task won't be run
+     */
+    @Override
+    public void execute(@NonNull Runnable command) {
+        if (!handler.post(command)) {
+            throw new RejectedExecutionException("the Looper of the handler has been quit");
+        }
+    }
+}